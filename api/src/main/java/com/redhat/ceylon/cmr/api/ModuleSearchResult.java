@@ -66,17 +66,36 @@ public class ModuleSearchResult {
         }
     }
 
+    /**
+     * Gets told about results as they are found, rather than once the search is done.
+     */
+    public interface Listener {
+        /**
+         * Called for each new module, and again when another repository adds to its details.
+         */
+        void onResult(ModuleDetails details);
+    }
+
     private NavigableMap<String,ModuleDetails> results = new TreeMap<String,ModuleDetails>();
+    private final Listener listener;
     private long[] nextPagingInfo;
     private long start;
     private boolean hasMoreResults;
 
+    public ModuleSearchResult() {
+        this(null);
+    }
+
+    public ModuleSearchResult(Listener listener) {
+        this.listener = listener;
+    }
+
     public void addResult(String moduleName, String doc, String license, SortedSet<String> authors, SortedSet<String> versions) {
         if(versions.isEmpty())
             throw new RuntimeException("Empty versions");
-        if(results.containsKey(moduleName)){
+        ModuleDetails details = results.get(moduleName);
+        if(details != null){
             // needs merge
-            ModuleDetails details = results.get(moduleName);
             String newLastVersion = versions.last();
             String oldLastVersion = details.getLastVersion();
             // only update doc/license if the newest version is newer than the previous newest
@@ -88,8 +107,11 @@ public class ModuleSearchResult {
             details.versions.addAll(versions);
         }else{
             // new module
-            results.put(moduleName, new ModuleDetails(moduleName, doc, license, authors, versions));
+            details = new ModuleDetails(moduleName, doc, license, authors, versions);
+            results.put(moduleName, details);
         }
+        if(listener != null)
+            listener.onResult(details);
     }
 
     public Collection<ModuleDetails> getResults() {
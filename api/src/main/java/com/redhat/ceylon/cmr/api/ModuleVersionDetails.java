@@ -10,6 +10,15 @@ public class ModuleVersionDetails {
     private String license;
     private NavigableSet<String> authors = new TreeSet<String>();
     private String doc;
+    private Loader loader;
+
+    /**
+     * Fills in the doc, license and authors the first time they are asked for,
+     * since that usually means reading the module archive.
+     */
+    public interface Loader {
+        void load(ModuleVersionDetails details);
+    }
 
     public ModuleVersionDetails(String version) {
         this.version = version;
@@ -22,16 +31,31 @@ public class ModuleVersionDetails {
         this.authors.addAll(Arrays.asList(by));
     }
 
+    public synchronized void setLoader(Loader loader) {
+        this.loader = loader;
+    }
+
+    private synchronized void load() {
+        if (loader != null) {
+            Loader l = loader;
+            loader = null;
+            l.load(this);
+        }
+    }
+
     public void setDoc(String doc) {
+        load();
         this.doc = doc;
     }
 
     public void setAuthors(SortedSet<String> authors) {
+        load();
         this.authors.clear();
         this.authors.addAll(authors);
     }
 
     public void setLicense(String license) {
+        load();
         this.license = license;
     }
 
@@ -40,14 +64,17 @@ public class ModuleVersionDetails {
     }
 
     public String getLicense() {
+        load();
         return license;
     }
 
     public NavigableSet<String> getAuthors() {
+        load();
         return authors;
     }
 
     public String getDoc() {
+        load();
         return doc;
     }
 
@@ -188,4 +188,17 @@ public interface RepositoryManager {
      * @return the list of matching module names
      */
     ModuleSearchResult searchModules(ModuleQuery query);
+
+    /**
+     * Same as {@link #searchModules(ModuleQuery)}, but the listener gets the results as
+     * each repository finds them, one at a time, in no particular order across repositories.
+     * When paging, they have to be merged first, so it gets them in order once every
+     * repository answered.
+     *
+     * @param query specifies the type of backend and optionally a pattern
+     * @param listener told about each result, can be null
+     *
+     * @return the list of matching module names
+     */
+    ModuleSearchResult searchModules(ModuleQuery query, ModuleSearchResult.Listener listener);
 }
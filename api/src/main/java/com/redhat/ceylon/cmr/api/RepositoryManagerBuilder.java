@@ -87,6 +87,14 @@ public class RepositoryManagerBuilder {
         return this;
     }
 
+    /**
+     * Never access remote repositories, only local ones and the cache.
+     */
+    public RepositoryManagerBuilder offline(boolean offline) {
+        getDelegate().offline(offline);
+        return this;
+    }
+
     public RepositoryManagerBuilder prependRepository(Repository external) {
         getDelegate().prependRepository(external);
         return this;
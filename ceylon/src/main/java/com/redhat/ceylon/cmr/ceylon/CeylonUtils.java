@@ -12,6 +12,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 
 public class CeylonUtils {
@@ -27,11 +28,14 @@ public class CeylonUtils {
         private List<String> userRepos;
         private List<String> extraUserRepos;
         private List<String> remoteRepos;
+        private List<List<String>> mirrorGroups;
+        private boolean hedging;
         private String outRepo;
         private String user;
         private String password;
         private Logger log;
         private boolean jdkIncluded;
+        private boolean offline;
 
         /**
          * Sets the current working directory to use for encountering the configuration
@@ -74,6 +78,31 @@ public class CeylonUtils {
             return this;
         }
 
+        /**
+         * Adds a group of HTTP mirrors of one logical remote repository. They are used as a
+         * single repository, after the remote repositories. Lookups go to the fastest healthy
+         * mirror, and to the next one if it fails. Can be called several times for several groups
+         *
+         * @param mirrors A list of URLs or names of repositories defined in the configuration
+         * @return This object for chaining method calls
+         */
+        public CeylonRepoManagerBuilder mirrors(List<String> mirrors) {
+            if (mirrorGroups == null) {
+                mirrorGroups = new ArrayList<List<String>>();
+            }
+            mirrorGroups.add(mirrors);
+            return this;
+        }
+
+        /**
+         * Set to true to also send a lookup to a second mirror when the first one
+         * takes longer than usual (its 95th percentile latency)
+         */
+        public CeylonRepoManagerBuilder hedging(boolean hedging) {
+            this.hedging = hedging;
+            return this;
+        }
+
         /**
          * Sets a list of paths to use for the user repositories. When not set the
          * list will be taken from the system configuration. When set this list
@@ -148,6 +177,14 @@ public class CeylonUtils {
             return this;
         }
 
+        /**
+         * Set to true to never access remote repositories, only the local ones and the cache
+         */
+        public CeylonRepoManagerBuilder offline(boolean offline) {
+            this.offline = offline;
+            return this;
+        }
+
         /**
          * The logger to use, both for the builder itself as well as the
          * manager under construction. When not set <code>URLLogger</code> will be used
@@ -197,6 +234,7 @@ public class CeylonUtils {
             final File root = new File(absolute(cacheRepo.getUrl()));
 
             final RepositoryManagerBuilder builder = new RepositoryManagerBuilder(root, log);
+            builder.offline(offline);
 
             // The first two we add in reverse order because they get PREpended to the root
 
@@ -258,6 +296,13 @@ public class CeylonUtils {
                 }
             }
 
+            // Add the mirror groups, each one as a single repository
+            if (mirrorGroups != null) {
+                for (List<String> mirrors : mirrorGroups) {
+                    addMirrors(builder, repositories, mirrors);
+                }
+            }
+
             log.debug("Repository lookup order:");
             for (String rds : builder.getRepositoriesDisplayString()) {
                 log.debug(" - " + rds);
@@ -331,7 +376,9 @@ public class CeylonUtils {
                 davContentStore.setUsername(user);
                 davContentStore.setPassword(password);
 
-                return new CachingRepositoryManager(davContentStore, cachingDir, log);
+                CachingRepositoryManager manager = new CachingRepositoryManager(davContentStore, cachingDir, log);
+                manager.setOffline(offline);
+                return manager;
             }
         }
 
@@ -374,6 +421,29 @@ public class CeylonUtils {
             }
         }
 
+        private void addMirrors(RepositoryManagerBuilder builder, Repositories repositories, List<String> mirrorUrls) {
+            List<URLContentStore> mirrors = new ArrayList<URLContentStore>();
+            for (String mirrorUrl : mirrorUrls) {
+                if (mirrorUrl.startsWith("+")) {
+                    // The token is the name of a repository defined in the Ceylon configuration file
+                    Repositories.Repository repo = repositories.getRepository(mirrorUrl.substring(1));
+                    if (repo != null) {
+                        mirrorUrl = repo.getUrl();
+                    }
+                }
+                if (isHTTP(mirrorUrl)) {
+                    mirrors.add(new RemoteContentStore(mirrorUrl, log));
+                } else {
+                    log.debug("Failed to add mirror, only HTTP mirrors are supported: " + mirrorUrl);
+                }
+            }
+            if (!mirrors.isEmpty()) {
+                MirroredContentStore store = new MirroredContentStore(mirrors, log);
+                store.setHedging(hedging);
+                builder.appendRepository(new DefaultRepository(store.createRoot()));
+            }
+        }
+
         private String absolute(String path) {
             if (!isRemote(path)) {
                 File f = new File(path);
@@ -30,7 +30,7 @@ import com.redhat.ceylon.cmr.api.RepositoryException;
 import com.redhat.ceylon.cmr.api.RepositoryManager;
 
 /**
- * Abstract, use Jandex to read off Module info.
+ * Abstract, reads the module info off the module descriptor.
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
@@ -52,12 +52,20 @@ public abstract class AbstractCeylonArtifactResult extends AbstractArtifactResul
         if (infos == null || infos.isEmpty())
             return Collections.emptyList();
 
+        final List<ArtifactContext> required = new ArrayList<ArtifactContext>();
+        for (ModuleInfo mi : infos) {
+            if (mi.isOptional() == false)
+                required.add(new ArtifactContext(mi.getName(), mi.getVersion()));
+        }
+        // the first lookup asks each remote repository about all the required ones at once
+        final MissingArtifacts missing = new MissingArtifacts(required);
         final List<ArtifactResult> results = new ArrayList<ArtifactResult>();
         for (ModuleInfo mi : infos) {
             results.add(new LazyArtifactResult(
                     mi.getName(),
                     mi.getVersion(),
-                    mi.isOptional() ? ImportType.OPTIONAL : (mi.isExport() ? ImportType.EXPORT : ImportType.UNDEFINED)));
+                    mi.isOptional() ? ImportType.OPTIONAL : (mi.isExport() ? ImportType.EXPORT : ImportType.UNDEFINED),
+                    missing));
         }
         return results;
     }
@@ -65,17 +73,24 @@ public abstract class AbstractCeylonArtifactResult extends AbstractArtifactResul
     private class LazyArtifactResult extends AbstractArtifactResult {
         private ArtifactResult delegate;
         private final ImportType importType;
+        private final MissingArtifacts missing;
 
-        private LazyArtifactResult(String name, String version, ImportType importType) {
+        private LazyArtifactResult(String name, String version, ImportType importType, MissingArtifacts missing) {
             super(name, version);
             this.importType = importType;
+            this.missing = missing;
         }
 
         private synchronized ArtifactResult getDelegate() {
             if (delegate == null) {
                 final ArtifactContext context = new ArtifactContext(name(), version());
                 context.setThrowErrorIfMissing(importType() != ImportType.OPTIONAL);
-                delegate = manager.getArtifactResult(context);
+                final MissingArtifacts previous = MissingArtifacts.activate(missing);
+                try {
+                    delegate = manager.getArtifactResult(context);
+                } finally {
+                    MissingArtifacts.activate(previous);
+                }
             }
             return delegate;
         }
@@ -22,10 +22,17 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.redhat.ceylon.cmr.api.AbstractRepositoryManager;
 import com.redhat.ceylon.cmr.api.ArtifactContext;
@@ -42,6 +49,7 @@ import com.redhat.ceylon.cmr.spi.ContentOptions;
 import com.redhat.ceylon.cmr.spi.ContentStore;
 import com.redhat.ceylon.cmr.spi.Node;
 import com.redhat.ceylon.cmr.spi.OpenNode;
+import com.redhat.ceylon.cmr.util.DownloadScheduler;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
@@ -57,17 +65,128 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
     protected Repository cache; // cache root
     protected boolean addCacheAsRoot; // do we treat cache as repo
 
+    private volatile boolean offline;
+    private final AtomicLong blockedAccesses = new AtomicLong();
+    private final CompletionCache completionCache = new CompletionCache();
+
     public AbstractNodeRepositoryManager(Logger log) {
         super(log);
     }
 
     public void setAddCacheAsRoot(boolean addCacheAsRoot) {
         this.addCacheAsRoot = addCacheAsRoot;
+        completionCache.clear();
         if (addCacheAsRoot == false && cache != null) {
             roots.remove(cache);
         }
     }
 
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * In offline mode remote repositories are never accessed, so lookups only find
+     * what is in the local repositories and the cache.
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+        completionCache.clear();
+        for (Repository root : roots) {
+            setOffline(root);
+        }
+        if (cache != null) {
+            setOffline(cache);
+        }
+    }
+
+    /**
+     * The number of remote repository accesses refused in offline mode.
+     */
+    public long getBlockedNetworkAccesses() {
+        long blocked = blockedAccesses.get();
+        // the cache may be one of the roots
+        final Map<AbstractRemoteContentStore, Boolean> stores = new IdentityHashMap<AbstractRemoteContentStore, Boolean>();
+        for (Repository root : roots) {
+            final AbstractRemoteContentStore store = getRemoteContentStore(root);
+            if (store != null)
+                stores.put(store, Boolean.TRUE);
+        }
+        final AbstractRemoteContentStore store = (cache != null) ? getRemoteContentStore(cache) : null;
+        if (store != null)
+            stores.put(store, Boolean.TRUE);
+        for (AbstractRemoteContentStore rcs : stores.keySet()) {
+            blocked += rcs.getBlockedAccesses();
+        }
+        return blocked;
+    }
+
+    public long getCompletionCacheTtl() {
+        return completionCache.getTtl();
+    }
+
+    /**
+     * Sets how long module and version completions are cached, in ms. Set it to 0 to
+     * not cache them. Adding or removing artifacts clears the cache anyway.
+     */
+    public void setCompletionCacheTtl(long ttl) {
+        completionCache.setTtl(ttl);
+    }
+
+    public int getCompletionCacheSize() {
+        return completionCache.getSize();
+    }
+
+    /**
+     * Sets how many completions are cached at most.
+     */
+    public void setCompletionCacheSize(int size) {
+        completionCache.setSize(size);
+    }
+
+    /**
+     * The number of completions answered from the cache.
+     */
+    public long getCompletionCacheHits() {
+        return completionCache.getHits();
+    }
+
+    public void clearCompletionCache() {
+        completionCache.clear();
+    }
+
+    private void setOffline(Repository repository) {
+        // so that nothing reaches the network, even outside of our lookups
+        final AbstractRemoteContentStore store = getRemoteContentStore(repository);
+        if (store != null)
+            store.setOffline(offline);
+    }
+
+    private static AbstractRemoteContentStore getRemoteContentStore(Repository repository) {
+        final ContentStore cs = repository.getRoot().getService(ContentStore.class);
+        return (cs instanceof AbstractRemoteContentStore) ? (AbstractRemoteContentStore) cs : null;
+    }
+
+    /**
+     * Should we skip this repository, since it is remote and we are offline?
+     */
+    protected boolean isBlocked(Repository repository, Object what) {
+        if (offline && repository.getRoot().isRemote()) {
+            blockedAccesses.incrementAndGet();
+            log.debug("Offline, not accessing " + repository.getDisplayString() + " for " + what);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fails if we would have to write to a remote repository while offline.
+     */
+    protected void checkOnline(Repository repository, Object what) throws RepositoryException {
+        if (isBlocked(repository, what))
+            throw new RepositoryException("Cannot modify remote repository " + repository.getDisplayString() + " in offline mode: " + what);
+    }
+
     protected OpenNode getCache() {
         if (cache == null)
             throw new IllegalArgumentException("Missing cache!");
@@ -82,21 +201,28 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
             throw new IllegalArgumentException("Cache already set!");
 
         this.cache = cache;
+        setOffline(cache);
         if (addCacheAsRoot) {
             roots.add(cache);
         }
+        completionCache.clear();
     }
 
     protected void prependRepository(Repository external) {
+        setOffline(external);
         roots.add(0, external);
+        completionCache.clear();
     }
 
     protected void appendRepository(Repository external) {
+        setOffline(external);
         roots.add(external);
+        completionCache.clear();
     }
 
     protected void removeRepository(Repository external) {
         roots.remove(external);
+        completionCache.clear();
     }
 
     protected ArtifactResult toArtifactResult(Node node) {
@@ -113,6 +239,8 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
     }
 
     public void putArtifact(ArtifactContext context, InputStream content) throws RepositoryException {
+        checkOnline(cache, context);
+        completionCache.clear();
         final Node parent = getOrCreateParent(context);
         log.debug("Adding artifact " + context + " to cache " + cache.getDisplayString());
         log.debug(" -> " + NodeUtils.getFullPath(parent));
@@ -133,6 +261,8 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
 
     @Override
     protected void putFolder(ArtifactContext context, File folder) throws RepositoryException {
+        checkOnline(cache, context);
+        completionCache.clear();
         Node parent = getOrCreateParent(context);
         log.debug("Adding folder " + context + " to cache " + cache.getDisplayString());
         log.debug(" -> " + NodeUtils.getFullPath(parent));
@@ -207,6 +337,8 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
     }
 
     public void removeArtifact(ArtifactContext context) throws RepositoryException {
+        checkOnline(cache, context);
+        completionCache.clear();
         Node parent = getFromCacheNode(context, false);
         log.debug("Remove artifact " + context + " to repository " + cache.getDisplayString());
         if (parent != null) {
@@ -300,6 +432,9 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
     protected Node getFromAllRoots(ArtifactContext context, boolean addLeaf) {
         LookupCaching.enable();
         try {
+            final MissingArtifacts missing = MissingArtifacts.getActive();
+            if (missing != null)
+                missing.check(this);
             return fromRepositories(roots, context, addLeaf);
         } finally {
             LookupCaching.disable();
@@ -324,6 +459,15 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
                     return child;
             }
 
+            if (isBlocked(repository, context))
+                continue;
+
+            final MissingArtifacts missing = MissingArtifacts.getActive();
+            if (missing != null && missing.contains(this, repository, context)) {
+                log.debug(" Skipping repository " + repository.getDisplayString() + ", it does not have " + context);
+                continue;
+            }
+
             child = fromRepository(repository, context, addLeaf);
             if (child != null)
                 return child;
@@ -343,6 +487,53 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
         return child; // not found
     }
 
+    /**
+     * Asks each remote repository at once about the artifacts the lookups would ask it about
+     * one by one, in the same order as {@link #fromRepositories}, as long as it can answer
+     * in a single request, and tells missing which ones each of them lacks.
+     */
+    void checkRemoteArtifacts(List<ArtifactContext> contexts, MissingArtifacts missing) {
+        if (offline || contexts.size() < 2)
+            return;
+        List<ArtifactContext> remaining = new ArrayList<ArtifactContext>(contexts);
+        boolean checked = false;
+        for (Repository repository : roots) {
+            if (remaining.isEmpty())
+                return;
+            if (repository.getRoot().isRemote() == false) {
+                removeFound(repository, remaining);
+                continue;
+            }
+            if (addCacheAsRoot == false && checked == false && cache != null) {
+                checked = true;
+                removeFound(cache, remaining);
+            }
+            final AbstractRemoteContentStore store = getRemoteContentStore(repository);
+            // Maven repositories name their artifacts differently, and asking
+            // one by one here would just add a round trip to each lookup
+            if (store == null || repository instanceof MavenRepository
+                    || remaining.size() < 2 || store.canCheckArtifactsAtOnce() == false)
+                return;
+            final Map<ArtifactContext, Boolean> exist = store.exist(remaining);
+            remaining = new ArrayList<ArtifactContext>();
+            for (Map.Entry<ArtifactContext, Boolean> entry : exist.entrySet()) {
+                // the lookup ends here unless it is missing
+                if (Boolean.FALSE.equals(entry.getValue())) {
+                    missing.add(repository, entry.getKey());
+                    remaining.add(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private void removeFound(Repository repository, List<ArtifactContext> contexts) {
+        final Iterator<ArtifactContext> iter = contexts.iterator();
+        while (iter.hasNext()) {
+            if (fromRepository(repository, iter.next(), true) != null)
+                iter.remove();
+        }
+    }
+
     protected Node fromRepository(Repository repository, ArtifactContext context, boolean addLeaf) {
         log.debug(" Trying repository " + repository.getDisplayString());
         Node node = repository.findParent(context);
@@ -367,36 +558,65 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
 
     @Override
     public ModuleSearchResult completeModules(ModuleQuery query) {
-        ModuleSearchResult result = new ModuleSearchResult();
+        ModuleSearchResult result = completionCache.getModules(query);
+        if (result != null)
+            return result;
+        result = new ModuleSearchResult();
         for (Repository root : roots) {
-            root.completeModules(query, result);
+            if (isBlocked(root, query) == false)
+                root.completeModules(query, result);
         }
+        completionCache.putModules(query, result);
         return result;
     }
 
     @Override
     public ModuleVersionResult completeVersions(ModuleVersionQuery query) {
-        ModuleVersionResult result = new ModuleVersionResult(query.getName());
+        ModuleVersionResult result = completionCache.getVersions(query);
+        if (result != null)
+            return result;
+        result = new ModuleVersionResult(query.getName());
         for (Repository root : roots) {
-            root.completeVersions(query, result);
+            if (isBlocked(root, query) == false)
+                root.completeVersions(query, result);
         }
+        completionCache.putVersions(query, result);
         return result;
     }
 
     @Override
     public ModuleSearchResult searchModules(ModuleQuery query) {
+        return searchModules(query, null);
+    }
+
+    @Override
+    public ModuleSearchResult searchModules(ModuleQuery query, ModuleSearchResult.Listener listener) {
         if (!query.isPaging()) {
             // that's pretty simple
+            final ModuleSearchResult found = new ModuleSearchResult(listener);
+            ModuleSearchResult.Listener forward = null;
+            if (listener != null) {
+                // merge each hit as soon as a root finds it, whichever root that is
+                forward = new ModuleSearchResult.Listener() {
+                    public void onResult(ModuleDetails details) {
+                        // one at a time, so the listener need not be thread-safe
+                        synchronized (found) {
+                            found.addResult(details.getName(), details.getDoc(), details.getLicense(), details.getAuthors(), details.getVersions());
+                        }
+                    }
+                };
+            }
             ModuleSearchResult result = new ModuleSearchResult();
-            for (Repository root : roots) {
-                root.searchModules(query, result);
+            // and merge them again in root order, so that it does not depend on who answered first
+            for (Future<ModuleSearchResult> part : searchRoots(roots, query, null, forward)) {
+                for (ModuleDetails details : getSearchResult(part).getResults()) {
+                    result.addResult(details.getName(), details.getDoc(), details.getLicense(), details.getAuthors(), details.getVersions());
+                }
             }
             return result;
         } else {
             // we need to merge manually
             ModuleSearchResult[] results = new ModuleSearchResult[roots.size()];
-            // keep an overall module name ordering
-            SortedSet<String> names = new TreeSet<String>();
             int i = 0;
             long[] pagingInfo = query.getPagingInfo();
             if (pagingInfo != null) {
@@ -404,18 +624,15 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
                 if (pagingInfo.length != roots.size())
                     throw new IllegalArgumentException("Paging info is not the same size as roots, it must have come from a different RepositoryManager");
             }
-            Long start = query.getStart();
-            for (Repository root : roots) {
-                ModuleSearchResult result = new ModuleSearchResult();
-                // adapt the start index if required
-                if (pagingInfo != null)
-                    query.setStart(pagingInfo[i]);
-                root.searchModules(query, result);
+            // each root gives us at most one page, sorted by module name
+            PriorityQueue<SearchCursor> cursors = new PriorityQueue<SearchCursor>();
+            for (Future<ModuleSearchResult> part : searchRoots(roots, query, pagingInfo, null)) {
+                ModuleSearchResult result = getSearchResult(part);
+                SearchCursor cursor = new SearchCursor(i, result);
+                if (cursor.next())
+                    cursors.add(cursor);
                 results[i++] = result;
-                names.addAll(result.getModuleNames());
             }
-            // restore the query start
-            query.setStart(start);
             // now merge results
             ModuleSearchResult result = new ModuleSearchResult();
             long[] resultPagingInfo = new long[roots.size()];
@@ -424,49 +641,35 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
                 System.arraycopy(pagingInfo, 0, resultPagingInfo, 0, resultPagingInfo.length);
 
             result.setNextPagingInfo(resultPagingInfo);
-            i = 0;
-            for (String module : names) {
+            long added = 0;
+            while (!cursors.isEmpty()) {
                 // stop if we exceeded the count
-                if (query.getCount() != null && i++ == query.getCount())
+                if (query.getCount() != null && added == query.getCount())
                     break;
-                // collect every module result for that name from the results
-                int repo = 0;
-                for (ModuleSearchResult resultPart : results) {
-                    ModuleDetails details = resultPart.getResult(module);
-                    // did we find anything in that repo?
-                    if (details == null) {
-                        repo++;
-                        continue;
-                    } else {
-                        // count one result for this repo
-                        resultPagingInfo[repo++]++;
-                    }
+                String module = cursors.peek().current.getName();
+                // collect every module result for that name, in root order
+                while (!cursors.isEmpty() && cursors.peek().current.getName().equals(module)) {
+                    SearchCursor cursor = cursors.poll();
+                    ModuleDetails details = cursor.current;
+                    // count one result for this repo
+                    resultPagingInfo[cursor.repo]++;
                     // merge it
                     result.addResult(module, details.getDoc(), details.getLicense(), details.getAuthors(), details.getVersions());
+                    if (cursor.next())
+                        cursors.add(cursor);
                 }
+                added++;
+                // only now do we know it belongs to this page, and all about it
+                if (listener != null)
+                    listener.onResult(result.getResult(module));
             }
-            // see if there are any records left in next pages
-            int repo = 0;
+            // if we did not use up every root's results, or a root had more, there is another page
+            boolean hasMoreResults = !cursors.isEmpty();
             for (ModuleSearchResult resultPart : results) {
-                // if we had more results in the first place then we must have another page
-                if (resultPart.getHasMoreResults()) {
-                    result.setHasMoreResults(true);
-                    break;
-                }
-                // see how many results we added from this repo
-                long resultsAddedForThisRepo;
-                if (pagingInfo != null)
-                    resultsAddedForThisRepo = resultPagingInfo[repo] - pagingInfo[repo];
-                else
-                    resultsAddedForThisRepo = resultPagingInfo[repo];
-                // did we have more results than we put in?
-                if (resultPart.getCount() > resultsAddedForThisRepo) {
-                    result.setHasMoreResults(true);
-                    break;
-                }
-                repo++;
+                hasMoreResults |= resultPart.getHasMoreResults();
             }
-            // record where we started (i is one greater than the number of modules added)
+            result.setHasMoreResults(hasMoreResults);
+            // record where we started
             if (query.getStart() != null)
                 result.setStart(query.getStart());
             else
@@ -475,4 +678,97 @@ public abstract class AbstractNodeRepositoryManager extends AbstractRepositoryMa
             return result;
         }
     }
+
+    /**
+     * Starts searching all the roots at once, each with its own copy of the query
+     * and its own results, since remote roots spend most of their time waiting.
+     * The listener, if any, is told about each root's results as it finds them.
+     */
+    private List<FutureTask<ModuleSearchResult>> searchRoots(List<Repository> roots, ModuleQuery query, long[] pagingInfo,
+                                                             final ModuleSearchResult.Listener listener) {
+        final List<FutureTask<ModuleSearchResult>> parts = new ArrayList<FutureTask<ModuleSearchResult>>();
+        final DownloadScheduler.Priority priority = DownloadScheduler.getPriority();
+        int i = 0;
+        for (final Repository root : roots) {
+            final ModuleQuery rootQuery = copy(query);
+            // adapt the start index if required
+            if (pagingInfo != null)
+                rootQuery.setStart(pagingInfo[i]);
+            i++;
+            final FutureTask<ModuleSearchResult> part = new FutureTask<ModuleSearchResult>(new Callable<ModuleSearchResult>() {
+                public ModuleSearchResult call() throws Exception {
+                    final ModuleSearchResult result = new ModuleSearchResult(listener);
+                    final DownloadScheduler.Priority previous = DownloadScheduler.setPriority(priority);
+                    try {
+                        if (isBlocked(root, rootQuery) == false)
+                            root.searchModules(rootQuery, result);
+                    } finally {
+                        DownloadScheduler.setPriority(previous);
+                    }
+                    return result;
+                }
+            });
+            parts.add(part);
+        }
+        if (parts.size() == 1) {
+            // no need for another thread
+            parts.get(0).run();
+        } else {
+            for (FutureTask<ModuleSearchResult> part : parts) {
+                Workers.getExecutor().execute(part);
+            }
+        }
+        return parts;
+    }
+
+    private static ModuleSearchResult getSearchResult(Future<ModuleSearchResult> part) {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static ModuleQuery copy(ModuleQuery query) {
+        final ModuleQuery copy = new ModuleQuery(query.getName(), query.getType());
+        copy.setStart(query.getStart());
+        copy.setCount(query.getCount());
+        copy.setBinaryMajor(query.getBinaryMajor());
+        copy.setBinaryMinor(query.getBinaryMinor());
+        return copy;
+    }
+
+    /**
+     * Walks the results of one root in module name order, for merging.
+     */
+    private static class SearchCursor implements Comparable<SearchCursor> {
+        private final int repo;
+        private final Iterator<ModuleDetails> results;
+        private ModuleDetails current;
+
+        private SearchCursor(int repo, ModuleSearchResult result) {
+            this.repo = repo;
+            this.results = result.getResults().iterator();
+        }
+
+        private boolean next() {
+            current = results.hasNext() ? results.next() : null;
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(SearchCursor other) {
+            final int ret = current.getName().compareTo(other.current.getName());
+            // same module: the first root comes first
+            return ret != 0 ? ret : repo - other.repo;
+        }
+    }
 }
@@ -16,6 +16,12 @@
 
 package com.redhat.ceylon.cmr.impl;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
 import com.redhat.ceylon.cmr.api.ContentFinder;
 import com.redhat.ceylon.cmr.api.Logger;
 import com.redhat.ceylon.cmr.api.ModuleQuery;
@@ -33,10 +39,66 @@ import com.redhat.ceylon.cmr.spi.StructureBuilder;
  */
 public abstract class AbstractRemoteContentStore extends AbstractContentStore implements ContentFinder {
 
+    private volatile boolean offline;
+    private final AtomicLong blockedAccesses = new AtomicLong();
+
     protected AbstractRemoteContentStore(Logger log) {
         super(log);
     }
 
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * In offline mode we never access the network: lookups miss, and anything else fails.
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    /**
+     * The number of network accesses refused in offline mode.
+     */
+    public long getBlockedAccesses() {
+        return blockedAccesses.get();
+    }
+
+    /**
+     * Call before any network access.
+     *
+     * @param access what we are about to do, for the log
+     * @return true if we are offline, and it must not happen
+     */
+    protected boolean isBlocked(String access) {
+        if (offline == false)
+            return false;
+        blockedAccesses.incrementAndGet();
+        log.debug("Offline, not accessing: " + access);
+        return true;
+    }
+
+    /**
+     * Same as {@link #isBlocked(String)}, but fails if we are offline.
+     */
+    protected void checkOnline(String access) throws IOException {
+        if (isBlocked(access))
+            throw new IOException("Offline, not accessing: " + access);
+    }
+
+    /**
+     * Can {@link #exist(List)} ask about all the artifacts in a single request?
+     */
+    public abstract boolean canCheckArtifactsAtOnce();
+
+    /**
+     * Which of these artifacts exist?
+     *
+     * @param artifacts the artifacts, by name, version and suffix
+     * @return whether each of them exists, in the same order, or null where we got no answer
+     */
+    public abstract Map<ArtifactContext, Boolean> exist(List<ArtifactContext> artifacts);
+
     public void addSuffix(String suffix) {
         suffixes.add(suffix);
     }
@@ -61,15 +61,28 @@ public abstract class AbstractRepository implements Repository {
     }
 
     protected List<String> getDefaultParentPathInternal(ArtifactContext context) {
-        final String name = context.getName();
+        return getDefaultParentPath(context.getName(), context.getVersion());
+    }
+
+    static List<String> getDefaultParentPath(String name, String version) {
         final List<String> tokens = new ArrayList<String>();
         tokens.addAll(Arrays.asList(name.split("\\.")));
-        final String version = context.getVersion();
         if (RepositoryManager.DEFAULT_MODULE.equals(name) == false && version != null)
             tokens.add(version); // add version
         return tokens;
     }
 
+    /**
+     * The path of an artifact in the default layout, as used by remote repositories.
+     */
+    static String getDefaultArtifactPath(ArtifactContext context, String separator) {
+        final StringBuilder sb = new StringBuilder();
+        for (String token : getDefaultParentPath(context.getName(), context.getVersion())) {
+            sb.append(token).append(separator);
+        }
+        return sb.append(getArtifactName(context.getName(), context.getVersion(), context.getSuffix())).toString();
+    }
+
     protected List<String> getDefaultParentPath(ArtifactContext context) {
         List<String> tokens = LookupCaching.getTokens(getClass());
         if (tokens == null) {
@@ -145,6 +158,13 @@ public abstract class AbstractRepository implements Repository {
         return "Repository (" + getClass().getName() + ") for root: " + root;
     }
 
+    /**
+     * The index to answer module searches and completion from, if any.
+     */
+    protected ModuleIndex getModuleIndex() {
+        return null;
+    }
+
     @Override
     public String getDisplayString() {
         return root.getDisplayString();
@@ -158,6 +178,11 @@ public abstract class AbstractRepository implements Repository {
             delegate.completeModules(query, result);
             return;
         }
+        ModuleIndex index = getModuleIndex();
+        if (index != null) {
+            index.completeModules(query, result);
+            return;
+        }
         // we NEED the -1 limit here to get empty tokens
         String[] paths = query.getName().split("\\.", -1);
         // find the right parent
@@ -401,6 +426,11 @@ public abstract class AbstractRepository implements Repository {
             delegate.completeVersions(lookup, result);
             return;
         }
+        ModuleIndex index = getModuleIndex();
+        if (index != null) {
+            index.completeVersions(lookup, result);
+            return;
+        }
         // FIXME: handle default module
         // FIXME: we should really get this splitting done somewhere in common
         String name = lookup.getName();
@@ -434,28 +464,45 @@ public abstract class AbstractRepository implements Repository {
                     continue;
                 // we found the artifact: let's notify
                 final ModuleVersionDetails newVersion = result.addVersion(version);
-                if (newVersion != null) {
-                    try {
-                        File file = artifact.getContent(File.class);
-                        if (file != null)
-                            BytecodeUtils.readModuleInfo(name, file, new ModuleInfoCallback() {
-                                @Override
-                                public void storeInfo(String doc, String license, String[] authors) {
-                                    newVersion.setDoc(doc);
-                                    newVersion.setLicense(license);
-                                    if (authors != null)
-                                        newVersion.getAuthors().addAll(Arrays.asList(authors));
-                                }
-                            });
-                    } catch (Exception e) {
-                        // bah
-                    }
-                }
+                if (newVersion != null)
+                    newVersion.setLoader(new ModuleInfoLoader(name, artifact));
                 break;
             }
         }
     }
 
+    /**
+     * Reads the doc, license and authors from the archive only if someone wants them.
+     */
+    private static class ModuleInfoLoader implements ModuleVersionDetails.Loader {
+        private final String name;
+        private final Node artifact;
+
+        private ModuleInfoLoader(String name, Node artifact) {
+            this.name = name;
+            this.artifact = artifact;
+        }
+
+        @Override
+        public void load(final ModuleVersionDetails details) {
+            try {
+                File file = artifact.getContent(File.class);
+                if (file != null)
+                    BytecodeUtils.readModuleInfo(name, file, new ModuleInfoCallback() {
+                        @Override
+                        public void storeInfo(String doc, String license, String[] authors) {
+                            details.setDoc(doc);
+                            details.setLicense(license);
+                            if (authors != null)
+                                details.getAuthors().addAll(Arrays.asList(authors));
+                        }
+                    });
+            } catch (Exception e) {
+                // bah
+            }
+        }
+    }
+
     private static class Ret {
         public boolean foundRightType;
         public long found;
@@ -473,6 +520,11 @@ public abstract class AbstractRepository implements Repository {
             delegate.searchModules(query, result);
             return;
         }
+        ModuleIndex index = getModuleIndex();
+        if (index != null) {
+            index.searchModules(query, result);
+            return;
+        }
         // do the searching the hard way
         try {
             searchModules(root, query, result, new Ret());
@@ -17,25 +17,17 @@
 package com.redhat.ceylon.cmr.impl;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.redhat.ceylon.cmr.api.ArtifactResult;
 import com.redhat.ceylon.cmr.api.DependencyResolver;
 import com.redhat.ceylon.cmr.api.ModuleInfo;
 import com.redhat.ceylon.cmr.spi.Node;
-import org.jboss.jandex.AnnotationInstance;
-import org.jboss.jandex.AnnotationValue;
-import org.jboss.jandex.ClassInfo;
-import org.jboss.jandex.DotName;
-import org.jboss.jandex.Index;
-import org.jboss.jandex.IndexReader;
-import org.jboss.jandex.Indexer;
-import org.jboss.jandex.JarIndexer;
 
 /**
  * Byte hacks / utils.
@@ -49,13 +41,20 @@ public final class BytecodeUtils implements DependencyResolver {
         public void storeInfo(String doc, String license, String[] authors);
     }
 
+    static final int DEFAULT_MEMO_SIZE = Integer.getInteger("ceylon.cmr.descriptors.memoSize", 256);
+
+    // the descriptors we read lately, by archive path, timestamp and size
+    private static final Object NONE = new Object();
+    private static final Map<String, Object> memo = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > DEFAULT_MEMO_SIZE;
+        }
+    };
+
     private BytecodeUtils() {
     }
 
-    private static final String JAVA = "java";
-    private static final DotName MODULE_ANNOTATION = DotName.createSimple("com.redhat.ceylon.compiler.java.metadata.Module");
-    private static final DotName CEYLON_ANNOTATION = DotName.createSimple("com.redhat.ceylon.compiler.java.metadata.Ceylon");
-
     public List<ModuleInfo> resolve(ArtifactResult parent) {
         return readModuleInformation(parent.name(), parent.artifact());
     }
@@ -72,122 +71,72 @@ public final class BytecodeUtils implements DependencyResolver {
      * @return module info list
      */
     public static List<ModuleInfo> readModuleInformation(final String moduleName, final File jarFile) {
-        final ClassInfo moduleClass = getModuleInfo(moduleName, jarFile);
-        if (moduleClass == null)
+        final ModuleDescriptorCache.Descriptor descriptor = getDescriptor(moduleName, jarFile);
+        if (descriptor == null)
             return null;
-
-        List<AnnotationInstance> annotations = moduleClass.annotations().get(MODULE_ANNOTATION);
-        if (annotations == null || annotations.isEmpty())
-            return Collections.emptyList();
-
-        final AnnotationInstance ai = annotations.get(0);
-        final AnnotationValue dependencies = ai.value("dependencies");
-        if (dependencies == null)
-            return Collections.emptyList();
-
-        final AnnotationInstance[] imports = dependencies.asNestedArray();
-        if (imports == null || imports.length == 0)
+        if (descriptor.dependencies == null)
             return Collections.emptyList();
+        return new ArrayList<ModuleInfo>(descriptor.dependencies);
+    }
 
-        final List<ModuleInfo> infos = new ArrayList<ModuleInfo>();
-        for (AnnotationInstance im : imports) {
-            final String name = asString(im, "name");
-            if (JAVA.equalsIgnoreCase(name) == false) {
-                final ModuleInfo mi = new ModuleInfo(
-                        name,
-                        asString(im, "version"),
-                        asBoolean(im, "optional"),
-                        asBoolean(im, "export"));
-                infos.add(mi);
+    private static ModuleDescriptorCache.Descriptor getDescriptor(String moduleName, File moduleArchive) {
+        final String key = moduleName + "|" + moduleArchive.getAbsolutePath()
+                + "|" + moduleArchive.lastModified() + "|" + moduleArchive.length();
+        Object descriptor;
+        synchronized (memo) {
+            descriptor = memo.get(key);
+        }
+        if (descriptor == null) {
+            descriptor = ModuleDescriptorCache.getInstance().get(moduleName, moduleArchive);
+            if (descriptor == null)
+                descriptor = NONE;
+            synchronized (memo) {
+                memo.put(key, descriptor);
             }
         }
-        return infos;
+        return (descriptor != NONE) ? (ModuleDescriptorCache.Descriptor) descriptor : null;
     }
 
-    private static ClassInfo getModuleInfo(final String moduleName,
-                                           final File jarFile) {
-        final Index index;
+    /**
+     * Reads the module descriptor from the archive, or returns null if it has none.
+     */
+    static ModuleDescriptorCache.Descriptor extractDescriptor(String moduleName, File moduleArchive) {
         try {
-            // TODO -- remove this with new Jandex release
-            final File indexFile = new File(jarFile.getAbsolutePath().replace(".jar", "-jar") + ".idx");
-            // remove the index file if it is older than the jar file
-            if(indexFile.exists() && indexFile.lastModified() < jarFile.lastModified())
-                indexFile.delete();
-            if (indexFile.exists() == false) {
-                JarIndexer.createJarIndex(jarFile, new Indexer(), false, false, false);
-            }
-
-            final InputStream stream = new FileInputStream(indexFile);
-            try {
-                index = new IndexReader(stream).read();
-            } finally {
-                stream.close();
-            }
+            return ModuleDescriptorReader.read(moduleName, moduleArchive);
         } catch (IOException e) {
-            throw new RuntimeException("Failed to read index for zip file " + jarFile.getPath(), e);
+            throw new RuntimeException("Failed to read module descriptor from zip file " + moduleArchive.getPath(), e);
         }
-
-        final DotName moduleClassName = DotName.createSimple(moduleName + ".module_");
-        return index.getClassByName(moduleClassName);
     }
 
     public static int[] getBinaryVersions(String moduleName, File moduleArchive) {
-        final ClassInfo moduleClass = getModuleInfo(moduleName, moduleArchive);
-        if (moduleClass == null)
-            return null;
-
-        List<AnnotationInstance> annotations = moduleClass.annotations().get(CEYLON_ANNOTATION);
-        if (annotations == null || annotations.isEmpty())
+        final ModuleDescriptorCache.Descriptor descriptor = getDescriptor(moduleName, moduleArchive);
+        if (descriptor == null || descriptor.binaryVersions == null)
             return null;
-
-        final AnnotationInstance moduleAnnotation = annotations.get(0);
-        AnnotationValue majorAnnotation = moduleAnnotation.value("major");
-        AnnotationValue minorAnnotation = moduleAnnotation.value("minor");
-        
-        int major = majorAnnotation != null ? majorAnnotation.asInt() : 0;
-        int minor = minorAnnotation != null ? minorAnnotation.asInt() : 0;
-        return new int[]{major, minor};
+        return descriptor.binaryVersions.clone();
     }
 
 
     public static void readModuleInfo(String moduleName, File moduleArchive, ModuleInfoCallback callback) {
-        final ClassInfo moduleClass = getModuleInfo(moduleName, moduleArchive);
-        if (moduleClass == null)
-            return;
-
-        List<AnnotationInstance> annotations = moduleClass.annotations().get(MODULE_ANNOTATION);
-        if (annotations == null || annotations.isEmpty())
+        final ModuleDescriptorCache.Descriptor descriptor = getDescriptor(moduleName, moduleArchive);
+        if (descriptor == null || descriptor.dependencies == null)
             return;
 
-        final AnnotationInstance moduleAnnotation = annotations.get(0);
-        AnnotationValue doc = moduleAnnotation.value("doc");
-        AnnotationValue license = moduleAnnotation.value("license");
-        AnnotationValue by = moduleAnnotation.value("by");
-
-        callback.storeInfo(doc != null ? doc.asString() : null,
-                license != null ? license.asString() : null,
-                by != null ? by.asStringArray() : null);
+        callback.storeInfo(descriptor.doc,
+                descriptor.license,
+                descriptor.authors != null ? descriptor.authors.clone() : null);
     }
 
     public static boolean matchesModuleInfo(String moduleName, File moduleArchive, String query) {
-        final ClassInfo moduleClass = getModuleInfo(moduleName, moduleArchive);
-        if (moduleClass == null)
-            return false;
-
-        List<AnnotationInstance> annotations = moduleClass.annotations().get(MODULE_ANNOTATION);
-        if (annotations == null || annotations.isEmpty())
+        final ModuleDescriptorCache.Descriptor descriptor = getDescriptor(moduleName, moduleArchive);
+        if (descriptor == null || descriptor.dependencies == null)
             return false;
 
-        final AnnotationInstance moduleAnnotation = annotations.get(0);
-        AnnotationValue doc = moduleAnnotation.value("doc");
-        if (doc != null && matches(doc.asString(), query))
+        if (descriptor.doc != null && matches(descriptor.doc, query))
             return true;
-        AnnotationValue license = moduleAnnotation.value("license");
-        if (license != null && matches(license.asString(), query))
+        if (descriptor.license != null && matches(descriptor.license, query))
             return true;
-        AnnotationValue by = moduleAnnotation.value("by");
-        if (by != null) {
-            for (String author : by.asStringArray()) {
+        if (descriptor.authors != null) {
+            for (String author : descriptor.authors) {
                 if (matches(author, query))
                     return true;
             }
@@ -199,16 +148,4 @@ public final class BytecodeUtils implements DependencyResolver {
         return string.toLowerCase().contains(query);
     }
 
-    private static String asString(AnnotationInstance ai, String name) {
-        final AnnotationValue av = ai.value(name);
-        if (av == null)
-            throw new IllegalArgumentException("Missing required annotation attribute: " + name);
-        return av.asString();
-    }
-
-    private static boolean asBoolean(AnnotationInstance ai, String name) {
-        final AnnotationValue av = ai.value(name);
-        return (av != null) && av.asBoolean();
-    }
-
 }
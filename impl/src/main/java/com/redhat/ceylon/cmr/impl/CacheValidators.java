@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted 
+ * by the author tags.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.redhat.ceylon.cmr.util.HttpConnector;
+
+/**
+ * HTTP validators of a locally cached copy of a remote resource,
+ * kept in a side file next to it.
+ */
+final class CacheValidators {
+
+    static final String VALIDATORS = ".validators";
+
+    private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+    // the artifact name and conditional headers of the cached copy being looked up on this thread
+    private static final ThreadLocal<Object[]> lookup = new ThreadLocal<Object[]>();
+
+    private String etag;
+    private String lastModified;
+    private long checked;
+    private long maxAge = -1L;
+
+    private CacheValidators() {
+    }
+
+    /**
+     * Read the validators of the cached file.
+     *
+     * @param file the cached file
+     * @return the validators, or null if we have none
+     */
+    static CacheValidators read(File file) {
+        final File vf = getValidatorsFile(file);
+        if (vf.exists() == false)
+            return null;
+        try {
+            final Properties properties = new Properties();
+            final InputStream is = new FileInputStream(vf);
+            try {
+                properties.load(is);
+            } finally {
+                IOUtils.safeClose(is);
+            }
+            final CacheValidators validators = new CacheValidators();
+            validators.etag = properties.getProperty("etag");
+            validators.lastModified = properties.getProperty("last-modified");
+            validators.checked = Long.parseLong(properties.getProperty("checked", "0"));
+            validators.maxAge = Long.parseLong(properties.getProperty("max-age", "-1"));
+            return validators;
+        } catch (Exception e) {
+            // corrupt or concurrently written, just revalidate
+            return null;
+        }
+    }
+
+    /**
+     * Get the validators from a response.
+     *
+     * @param response the 200 or 304 response
+     * @param previous the validators we sent, or null
+     * @return the new validators
+     */
+    static CacheValidators fromResponse(HttpConnector.Response response, CacheValidators previous) {
+        final CacheValidators validators = new CacheValidators();
+        validators.etag = response.getHeader("ETag");
+        validators.lastModified = response.getHeader("Last-Modified");
+        if (previous != null) {
+            // a 304 does not have to repeat them
+            if (validators.etag == null)
+                validators.etag = previous.etag;
+            if (validators.lastModified == null)
+                validators.lastModified = previous.lastModified;
+        }
+        final String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            final Matcher matcher = MAX_AGE.matcher(cacheControl);
+            if (matcher.find())
+                validators.maxAge = Long.parseLong(matcher.group(1)) * 1000L;
+            else if (cacheControl.contains("no-cache"))
+                validators.maxAge = 0L;
+        }
+        validators.checked = System.currentTimeMillis();
+        return validators;
+    }
+
+    /**
+     * Write the validators next to the cached file.
+     *
+     * @param file the cached file
+     */
+    void write(File file) {
+        final Properties properties = new Properties();
+        if (etag != null)
+            properties.setProperty("etag", etag);
+        if (lastModified != null)
+            properties.setProperty("last-modified", lastModified);
+        properties.setProperty("checked", String.valueOf(checked));
+        properties.setProperty("max-age", String.valueOf(maxAge));
+        try {
+            IOUtils.storeProperties(properties, getValidatorsFile(file), null);
+        } catch (IOException ignored) {
+            // we'll just revalidate next time
+        }
+    }
+
+    /**
+     * Forget the validators of the cached file.
+     *
+     * @param file the cached file
+     */
+    static void remove(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        getValidatorsFile(file).delete();
+    }
+
+    static File getValidatorsFile(File file) {
+        return new File(file.getPath() + VALIDATORS);
+    }
+
+    /**
+     * Is the cached copy still fresh, so that we do not even need to revalidate it?
+     *
+     * @param defaultMaxAge the max age to use when the server did not tell us, in ms
+     * @return true if fresh
+     */
+    boolean isFresh(long defaultMaxAge) {
+        final long age = System.currentTimeMillis() - checked;
+        return age >= 0 && age < (maxAge >= 0 ? maxAge : defaultMaxAge);
+    }
+
+    /**
+     * Add the headers turning a GET into a conditional GET.
+     *
+     * @param headers the request headers
+     */
+    void addConditionalHeaders(Map<String, String> headers) {
+        if (etag != null)
+            headers.put("If-None-Match", etag);
+        if (lastModified != null)
+            headers.put("If-Modified-Since", lastModified);
+    }
+
+    /**
+     * The validator to send with If-Range, which only accepts strong ETags.
+     *
+     * @return the ETag or Last-Modified, or null if we have none
+     */
+    String getRangeValidator() {
+        if (etag != null && etag.startsWith("W/") == false)
+            return etag;
+        return lastModified;
+    }
+
+    /**
+     * Makes the lookup of that artifact on this thread send these conditional headers,
+     * and keep the response for revalidating the cached copy, or no longer if they are null.
+     *
+     * @param name the artifact name
+     * @param headers the conditional headers, if we have a cached copy, or null
+     */
+    static void setConditionalLookup(String name, Map<String, String> headers) {
+        if (headers != null)
+            lookup.set(new Object[]{name, headers});
+        else
+            lookup.remove();
+    }
+
+    /**
+     * The conditional headers to send when fetching that artifact on this thread.
+     *
+     * @param name the artifact name
+     * @return the headers, possibly empty, or null if the response is not for revalidating
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, String> getConditionalHeaders(String name) {
+        final Object[] current = lookup.get();
+        return (current != null && current[0].equals(name)) ? (Map<String, String>) current[1] : null;
+    }
+
+    static String toHttpDate(long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+}
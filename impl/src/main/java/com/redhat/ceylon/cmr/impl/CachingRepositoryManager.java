@@ -20,6 +20,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.redhat.ceylon.cmr.api.ArtifactContext;
 import com.redhat.ceylon.cmr.api.ArtifactResult;
@@ -29,6 +32,7 @@ import com.redhat.ceylon.cmr.api.RepositoryException;
 import com.redhat.ceylon.cmr.api.RepositoryManager;
 import com.redhat.ceylon.cmr.spi.Node;
 import com.redhat.ceylon.cmr.spi.StructureBuilder;
+import com.redhat.ceylon.cmr.util.HttpConnector;
 
 /**
  * Caching / tmp repository.
@@ -37,8 +41,14 @@ import com.redhat.ceylon.cmr.spi.StructureBuilder;
  */
 public class CachingRepositoryManager extends AbstractNodeRepositoryManager {
 
+    /**
+     * One minute.
+     */
+    public static final long DEFAULT_MAX_AGE = 60 * 1000L;
+
     private RepositoryManager caching;
     private final File cachingDir;
+    private volatile long maxAge = DEFAULT_MAX_AGE;
 
     public CachingRepositoryManager(StructureBuilder root, File cachingDir, Logger log) {
         super(log);
@@ -62,31 +72,67 @@ public class CachingRepositoryManager extends AbstractNodeRepositoryManager {
         this.cachingDir = cachingDir;
     }
 
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * How long a cached artifact is used without revalidating it, in ms,
+     * unless the server sent its own max-age.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
     public ArtifactResult getArtifactResult(ArtifactContext context) throws RepositoryException {
         try {
-            Node node = getLeafNode(context);
+            ArtifactResult result = caching.getArtifactResult(context);
+            File file = (result != null) ? result.artifact() : null;
+            CacheValidators validators = null;
+            final Map<String, String> conditional = new HashMap<String, String>();
+            if (file != null && file.exists()) {
+                if (isOffline()) {
+                    log.debug("Offline, using cached artifact: " + file);
+                    return result;
+                }
+                validators = CacheValidators.read(file);
+                if (validators != null && validators.isFresh(maxAge)) {
+                    log.debug("Using fresh cached artifact: " + file);
+                    return result;
+                }
+                if (validators != null) {
+                    validators.addConditionalHeaders(conditional);
+                } else {
+                    conditional.put("If-Modified-Since", CacheValidators.toHttpDate(file.lastModified()));
+                }
+            } else {
+                file = null;
+            }
+
+            // so that an optimistic GET is the conditional one, and we get its response to revalidate
+            final Node node;
+            CacheValidators.setConditionalLookup(cache.getArtifactName(context), conditional);
+            try {
+                node = getLeafNode(context);
+            } finally {
+                CacheValidators.setConditionalLookup(null, null);
+            }
             // node and file must exist to check cache
             if (node != null) {
-                ArtifactResult result = caching.getArtifactResult(context);
-                if (result != null) {
-                    boolean valid = false;
-                    File file = result.artifact();
-                    if (file.exists()) {
-                        long lm = node.getLastModified();
-                        valid = (lm == -1 || lm < file.lastModified());
-                    }
+                final HttpContentHandle remote = NodeUtils.getHttpContentHandle(node);
+                if (remote != null && remote.isPrefetched() == false) {
+                    return revalidate(context, remote, result, file, validators, conditional);
+                }
+
+                if (file != null) {
+                    long lm = node.getLastModified();
+                    boolean valid = (lm == -1 || lm < file.lastModified());
                     if (valid) {
                         return result;
                     }
                 }
 
-                final boolean previous = context.isForceOperation();
-                context.setForceOperation(true);
-                try {
-                    caching.putArtifact(context, node.getInputStream());
-                } finally {
-                    context.setForceOperation(previous);
-                }
+                put(context, node.getInputStream());
                 return caching.getArtifactResult(context);
             }
             return null;
@@ -95,10 +141,48 @@ public class CachingRepositoryManager extends AbstractNodeRepositoryManager {
         }
     }
 
+    /**
+     * Conditional GET: a 304 just refreshes the validators, a 200 replaces the cached copy.
+     */
+    private ArtifactResult revalidate(ArtifactContext context, HttpContentHandle remote, ArtifactResult result,
+                                      File file, CacheValidators validators, Map<String, String> conditional) throws IOException {
+        final HttpConnector.Response response = remote.fetch(conditional);
+        try {
+            final int code = response.getCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && file != null) {
+                log.debug("Cached artifact not modified: " + file);
+                CacheValidators.fromResponse(response, validators).write(file);
+                return result;
+            }
+            if (code != HttpURLConnection.HTTP_OK)
+                throw new IOException("Got " + code + " for url: " + response.getURL());
+
+            put(context, response.getInputStream());
+            final ArtifactResult newResult = caching.getArtifactResult(context);
+            if (newResult != null)
+                CacheValidators.fromResponse(response, null).write(newResult.artifact());
+            return newResult;
+        } finally {
+            response.close();
+        }
+    }
+
+    private void put(ArtifactContext context, InputStream content) throws RepositoryException {
+        final boolean previous = context.isForceOperation();
+        context.setForceOperation(true);
+        try {
+            caching.putArtifact(context, content);
+        } finally {
+            context.setForceOperation(previous);
+        }
+    }
+
     @Override
     public void putArtifact(ArtifactContext context, InputStream content) throws RepositoryException {
+        checkOnline(cache, context);
         caching.putArtifact(context, content); // first copy to local
         final File file = caching.getArtifact(context); // should be here
+        CacheValidators.remove(file); // our copy is newer than the remote one
         try {
             super.putArtifact(context, new FileInputStream(file)); // upload
         } catch (Exception e) {
@@ -106,6 +190,15 @@ public class CachingRepositoryManager extends AbstractNodeRepositoryManager {
         }
     }
 
+    @Override
+    public void removeArtifact(ArtifactContext context) throws RepositoryException {
+        checkOnline(cache, context);
+        final File file = caching.getArtifact(context);
+        if (file != null)
+            CacheValidators.remove(file); // make sure we revalidate
+        super.removeArtifact(context);
+    }
+
     @Override
     public String toString() {
         return "CachingRepositoryManager: " + getCache();
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.redhat.ceylon.cmr.api.ModuleQuery;
+import com.redhat.ceylon.cmr.api.ModuleSearchResult;
+import com.redhat.ceylon.cmr.api.ModuleSearchResult.ModuleDetails;
+import com.redhat.ceylon.cmr.api.ModuleVersionDetails;
+import com.redhat.ceylon.cmr.api.ModuleVersionQuery;
+import com.redhat.ceylon.cmr.api.ModuleVersionResult;
+
+/**
+ * Short lived LRU cache of module and version completions, since they are asked
+ * for on every keystroke. Only the very same query is answered from the cache:
+ * completion stops below the first module it finds, so the answer for a shorter
+ * prefix need not hold what a longer one would find.
+ * <p/>
+ * Callers get copies, so they may do what they want with them.
+ */
+class CompletionCache {
+
+    static final long DEFAULT_TTL = Long.getLong("ceylon.cmr.completion.cacheTtl", 10 * 1000L);
+    static final int DEFAULT_SIZE = Integer.getInteger("ceylon.cmr.completion.cacheSize", 256);
+
+    private volatile long ttl = DEFAULT_TTL;
+    private volatile int size = DEFAULT_SIZE;
+    private final Map<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > size;
+        }
+    };
+    private long hits;
+    private long misses;
+
+    long getTtl() {
+        return ttl;
+    }
+
+    void setTtl(long ttl) {
+        this.ttl = ttl;
+        if (ttl <= 0)
+            clear();
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    synchronized void setSize(int size) {
+        this.size = size;
+        while (entries.size() > size) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    ModuleSearchResult getModules(ModuleQuery query) {
+        if (isCacheable(query) == false)
+            return null;
+        synchronized (this) {
+            final CacheEntry entry = get(getKeyPrefix("m", query) + getName(query));
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return copy((ModuleSearchResult) entry.result);
+        }
+    }
+
+    void putModules(ModuleQuery query, ModuleSearchResult result) {
+        if (isCacheable(query))
+            put(getKeyPrefix("m", query) + getName(query), copy(result));
+    }
+
+    ModuleVersionResult getVersions(ModuleVersionQuery query) {
+        if (isCacheable(query) == false)
+            return null;
+        synchronized (this) {
+            final CacheEntry entry = get(getVersionsKey(query));
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return copy((ModuleVersionResult) entry.result);
+        }
+    }
+
+    void putVersions(ModuleVersionQuery query, ModuleVersionResult result) {
+        if (isCacheable(query))
+            put(getVersionsKey(query), copy(result));
+    }
+
+    private boolean isCacheable(ModuleQuery query) {
+        return ttl > 0 && query.getStart() == null && query.getCount() == null && query.getPagingInfo() == null;
+    }
+
+    private static String getName(ModuleQuery query) {
+        return (query.getName() != null) ? query.getName() : "";
+    }
+
+    private static String getKeyPrefix(String kind, ModuleQuery query) {
+        return kind + "|" + query.getType() + "|" + query.getBinaryMajor() + "|" + query.getBinaryMinor() + "|";
+    }
+
+    private static String getVersionsKey(ModuleVersionQuery query) {
+        return getKeyPrefix("v", query) + getName(query) + "|" + query.getVersion();
+    }
+
+    private CacheEntry get(String key) {
+        final CacheEntry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() >= entry.expires) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(String key, Object result) {
+        entries.put(key, new CacheEntry(result, System.currentTimeMillis() + ttl));
+    }
+
+    private static ModuleSearchResult copy(ModuleSearchResult result) {
+        final ModuleSearchResult ret = new ModuleSearchResult();
+        for (ModuleDetails details : result.getResults()) {
+            ret.addResult(details.getName(), details.getDoc(), details.getLicense(), details.getAuthors(), details.getVersions());
+        }
+        ret.setHasMoreResults(result.getHasMoreResults());
+        ret.setStart(result.getStart());
+        return ret;
+    }
+
+    private static ModuleVersionResult copy(ModuleVersionResult result) {
+        final ModuleVersionResult ret = new ModuleVersionResult(result.getName());
+        for (Map.Entry<String, ModuleVersionDetails> entry : result.getVersions().entrySet()) {
+            final ModuleVersionDetails details = entry.getValue();
+            final ModuleVersionDetails version = ret.addVersion(entry.getKey());
+            version.setVersion(details.getVersion());
+            // only read the details if they are wanted
+            version.setLoader(new ModuleVersionDetails.Loader() {
+                @Override
+                public void load(ModuleVersionDetails version) {
+                    version.setDoc(details.getDoc());
+                    version.setLicense(details.getLicense());
+                    version.setAuthors(details.getAuthors());
+                }
+            });
+        }
+        return ret;
+    }
+
+    private static class CacheEntry {
+        private final Object result;
+        private final long expires;
+
+        private CacheEntry(Object result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+}
@@ -185,29 +185,18 @@ public class DefaultNode extends AbstractOpenNode {
 
     @Override
     public InputStream getInputStream() throws IOException {
-        synchronized (this) {
-            if (handle != null)
-                return handle.getBinariesAsStream();
-        }
-
-        final ContentStore cs = findService(ContentStore.class);
-        ContentHandle ch = cs.getContent(this);
-        if (ch == null) {
-            ch = HANDLE_MARKER;
-        }
-
-        synchronized (this) {
-            handle = ch;
-        }
-
-        return ch.getBinariesAsStream();
+        return getContentHandle().getBinariesAsStream();
     }
 
     @Override
     public long getLastModified() throws IOException {
+        return getContentHandle().getLastModified();
+    }
+
+    ContentHandle getContentHandle() throws IOException {
         synchronized (this) {
             if (handle != null)
-                return handle.getLastModified();
+                return handle;
         }
 
         final ContentStore cs = findService(ContentStore.class);
@@ -220,7 +209,7 @@ public class DefaultNode extends AbstractOpenNode {
             handle = ch;
         }
 
-        return ch.getLastModified();
+        return ch;
     }
 
     @Override
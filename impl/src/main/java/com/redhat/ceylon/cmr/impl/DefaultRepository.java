@@ -37,6 +37,11 @@ public class DefaultRepository extends AbstractRepository {
         super(root);
     }
 
+    @Override
+    protected ModuleIndex getModuleIndex() {
+        return getRoot().getService(ModuleIndex.class);
+    }
+
     protected ArtifactResult getArtifactResultInternal(RepositoryManager manager, Node node) {
         return new DefaultArtifactResult(manager, node);
     }
@@ -38,6 +38,9 @@ public class FileContentStore implements ContentStore, StructureBuilder {
 
     private final File root;
     private final ConcurrentMap<Node, File> cache = new ConcurrentHashMap<Node, File>();
+    private File indexDir = ModuleIndex.DEFAULT_DIR;
+    private boolean indexed = true;
+    private ModuleIndex index;
 
     public FileContentStore(File root) {
         if (root == null)
@@ -55,6 +58,44 @@ public class FileContentStore implements ContentStore, StructureBuilder {
         return root.getPath();
     }
 
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Sets whether module search and completion use a {@link ModuleIndex}
+     * rather than walking the folders. Must be set before the root is created.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public File getIndexDir() {
+        return indexDir;
+    }
+
+    /**
+     * Sets where the module index is kept, or null to keep it in memory only.
+     */
+    public synchronized void setIndexDir(File indexDir) {
+        this.indexDir = indexDir;
+        this.index = null;
+    }
+
+    /**
+     * The module index for this store.
+     */
+    public synchronized ModuleIndex getIndex() {
+        if (index == null)
+            index = new ModuleIndex(root, indexDir);
+        return index;
+    }
+
+    private void invalidate(File file) {
+        if (indexed)
+            getIndex().invalidate(file);
+    }
+
     File getFile(Node node) {
         if (node == null)
             throw new IllegalArgumentException("Null node");
@@ -123,11 +164,15 @@ public class FileContentStore implements ContentStore, StructureBuilder {
         }
 
         IOUtils.writeToFile(file, stream);
+        invalidate(file);
         return new FileContentHandle(node, file);
     }
 
     public OpenNode createRoot() {
-        return new RootNode(this, this);
+        final RootNode root = new RootNode(this, this);
+        if (indexed)
+            root.addService(ModuleIndex.class, getIndex());
+        return root;
     }
 
     public OpenNode create(Node parent, String child) {
@@ -182,6 +227,7 @@ public class FileContentStore implements ContentStore, StructureBuilder {
         if (root.equals(file))
             return;
 
+        invalidate(file);
         File[] files = file.listFiles();
         if ((files == null || files.length == 0) && (file.exists() == false || file.delete())) {
             cache.remove(node); // remove from cache, since probably not used anymore
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted 
+ * by the author tags.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+
+/**
+ * What we found out about a remote root: is it a Herd repo, and where are its
+ * web services. Kept on disk per root URL, so new processes need not ask again.
+ */
+final class HerdInfo {
+
+    private static final String SUFFIX = ".herd";
+
+    String version;
+    String completeModulesURL;
+    String completeVersionsURL;
+    String searchModulesURL;
+    String checkArtifactsURL;
+    private long checked;
+
+    HerdInfo(String version) {
+        this.version = version;
+        this.checked = System.currentTimeMillis();
+    }
+
+    boolean isHerd() {
+        return version != null && version.isEmpty() == false;
+    }
+
+    /**
+     * Read what we know about a root.
+     *
+     * @param dir  the cache folder
+     * @param root the root URL
+     * @param ttl  how long what we know stays valid, in ms
+     * @return the info, or null if we know nothing recent
+     */
+    static HerdInfo read(File dir, String root, long ttl) {
+        final File file = getFile(dir, root);
+        if (file.exists() == false)
+            return null;
+        try {
+            final Properties properties = new Properties();
+            final InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            } finally {
+                IOUtils.safeClose(is);
+            }
+            // guard against hash collisions
+            if (root.equals(properties.getProperty("root")) == false)
+                return null;
+            final HerdInfo info = new HerdInfo(properties.getProperty("version"));
+            info.checked = Long.parseLong(properties.getProperty("checked", "0"));
+            final long age = System.currentTimeMillis() - info.checked;
+            if (age < 0 || age >= ttl)
+                return null;
+            info.completeModulesURL = properties.getProperty("complete-modules");
+            info.completeVersionsURL = properties.getProperty("complete-versions");
+            info.searchModulesURL = properties.getProperty("search-modules");
+            info.checkArtifactsURL = properties.getProperty("check-artifacts");
+            return info;
+        } catch (Exception e) {
+            // corrupt or concurrently written, just ask again
+            return null;
+        }
+    }
+
+    /**
+     * Remember what we know about a root.
+     *
+     * @param dir  the cache folder
+     * @param root the root URL
+     */
+    void write(File dir, String root) {
+        final Properties properties = new Properties();
+        properties.setProperty("root", root);
+        if (version != null)
+            properties.setProperty("version", version);
+        if (completeModulesURL != null)
+            properties.setProperty("complete-modules", completeModulesURL);
+        if (completeVersionsURL != null)
+            properties.setProperty("complete-versions", completeVersionsURL);
+        if (searchModulesURL != null)
+            properties.setProperty("search-modules", searchModulesURL);
+        if (checkArtifactsURL != null)
+            properties.setProperty("check-artifacts", checkArtifactsURL);
+        properties.setProperty("checked", String.valueOf(checked));
+        try {
+            IOUtils.storeProperties(properties, getFile(dir, root), null);
+        } catch (IOException ignored) {
+            // we'll just ask again next time
+        }
+    }
+
+    private static File getFile(File dir, String root) {
+        try {
+            return new File(dir, IOUtils.sha1(new ByteArrayInputStream(root.getBytes("UTF-8"))) + SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            // can't happen
+            throw new RuntimeException(e);
+        }
+    }
+}
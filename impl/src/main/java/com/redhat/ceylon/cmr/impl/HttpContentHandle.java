@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted 
+ * by the author tags.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.redhat.ceylon.cmr.spi.ContentHandle;
+import com.redhat.ceylon.cmr.util.HttpConnector;
+
+/**
+ * Content handle of an HTTP resource, which can be fetched conditionally or partially.
+ */
+public interface HttpContentHandle extends ContentHandle {
+    /**
+     * GET the resource, with the store's credentials and the given extra headers.
+     * The caller must close the response.
+     *
+     * @param headers the extra headers, e.g. conditional or range headers
+     * @return the response
+     * @throws IOException for any I/O error
+     */
+    HttpConnector.Response fetch(Map<String, String> headers) throws IOException;
+
+    /**
+     * Was the content already fetched, so that reading it costs no request?
+     *
+     * @return true if prefetched
+     */
+    boolean isPrefetched();
+
+    /**
+     * In how many concurrent segments should we fetch content of that length,
+     * if the server supports range requests.
+     *
+     * @param length the content length
+     * @return the number of segments, 1 for a plain fetch
+     */
+    int getSegments(long length);
+}
@@ -20,6 +20,7 @@ package com.redhat.ceylon.cmr.impl;
 import java.io.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -129,6 +130,40 @@ public class IOUtils {
         copyStream(inputStream, new FileOutputStream(file));
     }
 
+    /**
+     * Write properties aside and rename them over the file, so readers never see
+     * half of it.
+     *
+     * @param properties the properties
+     * @param file       the file to write or replace, its folder is created if needed
+     * @param comments   the comments, or null
+     * @throws IOException for any I/O error
+     */
+    static void storeProperties(Properties properties, File file, String comments) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (dir.exists() == false && dir.mkdirs() == false && dir.exists() == false)
+            throw new IOException("Cannot create folder " + dir);
+        final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            final OutputStream os = new FileOutputStream(tmp);
+            try {
+                properties.store(os, comments);
+            } finally {
+                os.close();
+            }
+            if (tmp.renameTo(file) == false) {
+                // on some platforms we can't rename over an existing file
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (tmp.renameTo(file) == false)
+                    throw new IOException("Cannot replace " + file);
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
     static String sha1(InputStream is) {
         final MessageDigest digest;
         try {
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
+import com.redhat.ceylon.cmr.api.Logger;
+import com.redhat.ceylon.cmr.api.ModuleQuery;
+import com.redhat.ceylon.cmr.api.ModuleSearchResult;
+import com.redhat.ceylon.cmr.api.ModuleVersionQuery;
+import com.redhat.ceylon.cmr.api.ModuleVersionResult;
+import com.redhat.ceylon.cmr.spi.ContentHandle;
+import com.redhat.ceylon.cmr.spi.ContentOptions;
+import com.redhat.ceylon.cmr.spi.Node;
+import com.redhat.ceylon.cmr.spi.OpenNode;
+import com.redhat.ceylon.cmr.util.DownloadScheduler;
+import com.redhat.ceylon.cmr.util.RemoteHealth;
+
+/**
+ * One logical remote repository, served by several mirrors.
+ * <p/>
+ * Lookups go to the fastest healthy mirror, and to the next one if it fails.
+ * A miss from a mirror which answered is final, since mirrors have the same content.
+ * With hedging on, a lookup which takes longer than the 95th percentile of its
+ * mirror's latency is also sent to the next mirror, and the first answer wins.
+ */
+public class MirroredContentStore extends AbstractRemoteContentStore {
+
+    /**
+     * How many responses a mirror must have given before we trust its latency percentiles.
+     */
+    private static final int MIN_SAMPLES = 10;
+
+    private final List<URLContentStore> mirrors;
+    private volatile boolean hedging;
+    private final AtomicLong hedged = new AtomicLong();
+
+    public MirroredContentStore(List<? extends URLContentStore> mirrors, Logger log) {
+        super(log);
+        if (mirrors == null || mirrors.isEmpty())
+            throw new IllegalArgumentException("No mirrors");
+        this.mirrors = new ArrayList<URLContentStore>(mirrors);
+    }
+
+    @Override
+    public void addSuffix(String suffix) {
+        super.addSuffix(suffix);
+        // called by our super constructor, before we have mirrors
+        if (mirrors != null) {
+            for (URLContentStore mirror : mirrors) {
+                mirror.addSuffix(suffix);
+            }
+        }
+    }
+
+    @Override
+    public void setOffline(boolean offline) {
+        super.setOffline(offline);
+        for (URLContentStore mirror : mirrors) {
+            mirror.setOffline(offline);
+        }
+    }
+
+    @Override
+    public long getBlockedAccesses() {
+        long blocked = super.getBlockedAccesses();
+        for (URLContentStore mirror : mirrors) {
+            blocked += mirror.getBlockedAccesses();
+        }
+        return blocked;
+    }
+
+    public List<URLContentStore> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    /**
+     * Sets whether slow lookups are also sent to a second mirror.
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * The number of lookups which were sent to a second mirror because the first was too slow.
+     */
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /**
+     * The mirrors in order of preference: the healthy ones first, fastest first.
+     * Mirrors we know nothing about yet come first, in declaration order.
+     */
+    public List<URLContentStore> getPreferredMirrors() {
+        final List<URLContentStore> preferred = new ArrayList<URLContentStore>(mirrors);
+        final Map<URLContentStore, Double> latencies = new IdentityHashMap<URLContentStore, Double>();
+        for (URLContentStore mirror : mirrors) {
+            final RemoteHealth health = mirror.getHealth();
+            // unavailable ones last, but still there, since they may need probing
+            latencies.put(mirror, health.isAvailable() ? Math.max(0, health.getAverageLatency()) : Double.MAX_VALUE);
+        }
+        // stable, so ties keep the declaration order
+        Collections.sort(preferred, new Comparator<URLContentStore>() {
+            public int compare(URLContentStore m1, URLContentStore m2) {
+                return Double.compare(latencies.get(m1), latencies.get(m2));
+            }
+        });
+        return preferred;
+    }
+
+    public URLContentStore getPreferredMirror() {
+        return getPreferredMirrors().get(0);
+    }
+
+    public OpenNode find(Node parent, String child) {
+        final List<URLContentStore> preferred = getPreferredMirrors();
+        int next = 0;
+        while (next < preferred.size()) {
+            final Lookup lookup;
+            if (hedging && next + 1 < preferred.size()) {
+                lookup = hedgedFind(preferred.get(next), preferred.get(next + 1), parent, child);
+                next += 2;
+            } else {
+                lookup = find(preferred.get(next), parent, child);
+                next++;
+            }
+            if (lookup.answered)
+                return lookup.node;
+        }
+        return null;
+    }
+
+    private Lookup find(URLContentStore mirror, Node parent, String child) {
+        try {
+            return new Lookup(mirror.lookup(parent, child), true);
+        } catch (IOException e) {
+            // a miss only counts if the mirror did not fail us
+            log.debug("Mirror " + mirror.getDisplayString() + " failed to look up " + child + ", trying the next one: " + e.getMessage());
+            return new Lookup(null, false);
+        }
+    }
+
+    private Lookup hedgedFind(final URLContentStore primary, final URLContentStore secondary, final Node parent, final String child) {
+        final RemoteHealth health = primary.getHealth();
+        final double p95 = (health.getSuccesses() >= MIN_SAMPLES) ? health.getLatencyPercentile(0.95) : -1;
+        if (p95 < 0) {
+            // we don't know what slow is for this mirror yet
+            final Lookup lookup = find(primary, parent, child);
+            return lookup.answered ? lookup : find(secondary, parent, child);
+        }
+        final CompletionService<Lookup> lookups = new ExecutorCompletionService<Lookup>(Workers.getExecutor());
+        final AtomicBoolean settled = new AtomicBoolean();
+        final List<Future<Lookup>> sent = new ArrayList<Future<Lookup>>(2);
+        Future<Lookup> winner = null;
+        sent.add(lookups.submit(lookup(primary, parent, child, settled)));
+        int pending = 1;
+        boolean secondarySent = false;
+        try {
+            while (pending > 0) {
+                final Future<Lookup> done;
+                if (secondarySent) {
+                    done = lookups.take();
+                } else {
+                    done = lookups.poll((long) Math.ceil(p95), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        log.debug("Mirror " + primary.getDisplayString() + " is slow to look up " + child + ", also asking " + secondary.getDisplayString());
+                        hedged.incrementAndGet();
+                    }
+                }
+                if (done != null) {
+                    pending--;
+                    final Lookup lookup = get(done);
+                    if (lookup.answered) {
+                        winner = done;
+                        return lookup;
+                    }
+                }
+                if (secondarySent == false) {
+                    sent.add(lookups.submit(lookup(secondary, parent, child, settled)));
+                    pending++;
+                    secondarySent = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // the loser must not download for nothing, nor hold on to its response
+            settled.set(true);
+            for (Future<Lookup> future : sent) {
+                if (future != winner && future.cancel(true) == false && future.isCancelled() == false)
+                    release(getDone(future));
+            }
+        }
+        return new Lookup(null, false);
+    }
+
+    private Callable<Lookup> lookup(final URLContentStore mirror, final Node parent, final String child, final AtomicBoolean settled) {
+        final DownloadScheduler.Priority priority = DownloadScheduler.getPriority();
+        return new Callable<Lookup>() {
+            public Lookup call() throws Exception {
+                final DownloadScheduler.Priority previous = DownloadScheduler.setPriority(priority);
+                try {
+                    final Lookup lookup = find(mirror, parent, child);
+                    // too late, the other mirror answered first
+                    if (settled.get())
+                        release(lookup);
+                    return lookup;
+                } finally {
+                    DownloadScheduler.setPriority(previous);
+                }
+            }
+        };
+    }
+
+    private static void release(Lookup lookup) {
+        if (lookup == null || lookup.node == null)
+            return;
+        try {
+            final HttpContentHandle handle = NodeUtils.getHttpContentHandle(lookup.node);
+            if (handle != null)
+                handle.clean();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Lookup getDone(Future<Lookup> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private Lookup get(Future<Lookup> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            log.debug("Mirror lookup failed: " + e.getCause());
+            return new Lookup(null, false);
+        }
+    }
+
+    public boolean canCheckArtifactsAtOnce() {
+        return getPreferredMirror().canCheckArtifactsAtOnce();
+    }
+
+    /**
+     * See {@link URLContentStore#exist(List)}. Asks the preferred mirror, which is also
+     * the one lookups go to first.
+     */
+    public Map<ArtifactContext, Boolean> exist(List<ArtifactContext> artifacts) {
+        return getPreferredMirror().exist(artifacts);
+    }
+
+    public Iterable<? extends OpenNode> find(Node parent) {
+        return getPreferredMirror().find(parent);
+    }
+
+    public OpenNode create(Node parent, String child) {
+        return getPreferredMirror().create(parent, child);
+    }
+
+    public ContentHandle peekContent(Node node) {
+        return getPreferredMirror().peekContent(node);
+    }
+
+    public ContentHandle getContent(Node node) throws IOException {
+        return getPreferredMirror().getContent(node);
+    }
+
+    public ContentHandle putContent(Node node, InputStream stream, ContentOptions options) throws IOException {
+        return getPreferredMirror().putContent(node, stream, options);
+    }
+
+    public boolean isHerd() {
+        return getPreferredMirror().isHerd();
+    }
+
+    @Override
+    public void completeModules(ModuleQuery query, ModuleSearchResult result) {
+        getPreferredMirror().completeModules(query, result);
+    }
+
+    @Override
+    public void completeVersions(ModuleVersionQuery query, ModuleVersionResult result) {
+        getPreferredMirror().completeVersions(query, result);
+    }
+
+    @Override
+    public void searchModules(ModuleQuery query, ModuleSearchResult result) {
+        getPreferredMirror().searchModules(query, result);
+    }
+
+    public String getDisplayString() {
+        final StringBuilder sb = new StringBuilder();
+        for (URLContentStore mirror : mirrors) {
+            if (sb.length() > 0)
+                sb.append(" | ");
+            sb.append(mirror.getDisplayString());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Mirrored content store: " + getDisplayString();
+    }
+
+    private static class Lookup {
+        private final OpenNode node;
+        private final boolean answered;
+
+        private Lookup(OpenNode node, boolean answered) {
+            this.node = node;
+            this.answered = answered;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted 
+ * by the author tags.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
+import com.redhat.ceylon.cmr.api.Repository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dependencies of one module which we need, and which remote repositories told us
+ * they do not have. While active on a thread, the lookups there ask about all of them
+ * at once the first time, then skip the repositories lacking the one they look for.
+ */
+final class MissingArtifacts {
+
+    private static final ThreadLocal<MissingArtifacts> active = new ThreadLocal<MissingArtifacts>();
+
+    private final List<ArtifactContext> contexts;
+    private AbstractNodeRepositoryManager manager;
+    private final Map<String, List<Repository>> missing = new HashMap<String, List<Repository>>();
+
+    MissingArtifacts(List<ArtifactContext> contexts) {
+        this.contexts = contexts;
+    }
+
+    /**
+     * Asks the manager's remote repositories about all of them, unless we already did.
+     */
+    synchronized void check(AbstractNodeRepositoryManager manager) {
+        if (this.manager == null) {
+            this.manager = manager;
+            manager.checkRemoteArtifacts(contexts, this);
+        }
+    }
+
+    synchronized void add(Repository repository, ArtifactContext context) {
+        final String key = getKey(context);
+        List<Repository> repositories = missing.get(key);
+        if (repositories == null) {
+            repositories = new ArrayList<Repository>();
+            missing.put(key, repositories);
+        }
+        repositories.add(repository);
+    }
+
+    synchronized boolean contains(AbstractNodeRepositoryManager manager, Repository repository, ArtifactContext context) {
+        if (manager != this.manager)
+            return false;
+        final List<Repository> repositories = missing.get(getKey(context));
+        return repositories != null && repositories.contains(repository);
+    }
+
+    /**
+     * Makes these the active ones on this thread, and returns the previous ones.
+     */
+    static MissingArtifacts activate(MissingArtifacts artifacts) {
+        final MissingArtifacts previous = active.get();
+        if (artifacts != null)
+            active.set(artifacts);
+        else
+            active.remove();
+        return previous;
+    }
+
+    static MissingArtifacts getActive() {
+        return active.get();
+    }
+
+    private static String getKey(ArtifactContext context) {
+        return context.getName() + "/" + context.getVersion() + "/" + context.getSuffix();
+    }
+}
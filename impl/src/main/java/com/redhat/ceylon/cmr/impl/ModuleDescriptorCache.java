@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.redhat.ceylon.cmr.api.ModuleInfo;
+
+/**
+ * Central cache of what the module descriptors of archives say, shared by all the
+ * repositories and processes of a user, so we never write next to the archives.
+ * <p/>
+ * Entries are keyed by the SHA-1 of the archive when it has a .sha1 file next to it,
+ * so the same archive found in several repositories is read once, or else by its
+ * path, in which case an entry only holds for the timestamp and size it was read
+ * for and is replaced when the archive changes. They are written to a temporary
+ * file and renamed, so other processes never see half of one.
+ * <p/>
+ * Entries nobody used for a while are dropped, which we check at most once a day.
+ */
+public class ModuleDescriptorCache {
+
+    public static final File DEFAULT_DIR = new File(System.getProperty("ceylon.cmr.descriptors.dir",
+            System.getProperty("user.home") + File.separator + ".ceylon" + File.separator + "descriptors"));
+
+    public static final long DEFAULT_MAX_AGE = Long.getLong("ceylon.cmr.descriptors.maxAge", 30L * 24 * 60 * 60 * 1000);
+
+    private static final String FORMAT = "2";
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static volatile ModuleDescriptorCache instance = new ModuleDescriptorCache(DEFAULT_DIR);
+
+    private final File dir;
+    private volatile boolean pruned;
+
+    /**
+     * @param dir where to keep the descriptors, or null to not keep them
+     */
+    public ModuleDescriptorCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * The cache shared by all repositories.
+     */
+    public static ModuleDescriptorCache getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(ModuleDescriptorCache cache) {
+        if (cache == null)
+            throw new IllegalArgumentException("Null cache");
+        instance = cache;
+    }
+
+    /**
+     * What the descriptor of this module says, or null if the archive does not have one.
+     */
+    Descriptor get(String moduleName, File archive) {
+        File file = null;
+        long lastModified = 0;
+        if (dir != null) {
+            prune();
+            final String sha1 = getSha1(archive);
+            if (sha1 == null)
+                lastModified = archive.lastModified();
+            file = getFile(moduleName, (sha1 != null) ? sha1 : archive.getAbsolutePath());
+        }
+        if (file != null && file.isFile()) {
+            final Descriptor descriptor = load(file, archive.length(), lastModified);
+            if (descriptor != null) {
+                touch(file);
+                return descriptor.found ? descriptor : null;
+            }
+        }
+        final Descriptor descriptor = BytecodeUtils.extractDescriptor(moduleName, archive);
+        if (file != null)
+            store(file, archive.length(), lastModified, descriptor != null ? descriptor : new Descriptor(false));
+        return descriptor;
+    }
+
+    private static String getSha1(File archive) {
+        final File sha1 = new File(archive.getPath() + ".sha1");
+        if (sha1.isFile()) {
+            try {
+                final String key = IOUtils.readSha1(new FileInputStream(sha1));
+                if (key != null && key.trim().length() == 40)
+                    return key.trim();
+            } catch (IOException e) {
+                // we'll do without
+            }
+        }
+        return null;
+    }
+
+    private File getFile(String moduleName, String key) {
+        final String hash;
+        try {
+            hash = IOUtils.sha1(new ByteArrayInputStream((key + "|" + moduleName).getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            // can't happen
+            throw new RuntimeException(e);
+        }
+        if (hash == null)
+            return null;
+        return new File(new File(dir, hash.substring(0, 2)), hash + ".properties");
+    }
+
+    private static void touch(File file) {
+        final long now = System.currentTimeMillis();
+        if (now - file.lastModified() > DAY)
+            file.setLastModified(now);
+    }
+
+    private void prune() {
+        if (pruned)
+            return;
+        pruned = true;
+        final long now = System.currentTimeMillis();
+        final File marker = new File(dir, "pruned");
+        if (now - marker.lastModified() < DAY)
+            return;
+        final File[] shards = dir.listFiles();
+        if (shards == null)
+            return;
+        try {
+            if (marker.createNewFile() == false)
+                marker.setLastModified(now);
+        } catch (IOException e) {
+            return;
+        }
+        for (File shard : shards) {
+            final File[] entries = shard.listFiles();
+            if (entries == null)
+                continue;
+            for (File entry : entries) {
+                if (now - entry.lastModified() > DEFAULT_MAX_AGE)
+                    entry.delete();
+            }
+            // only goes once it is empty
+            shard.delete();
+        }
+    }
+
+    private static Descriptor load(File file, long size, long lastModified) {
+        final Properties properties = new Properties();
+        try {
+            final InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+            if (FORMAT.equals(properties.getProperty("format")) == false
+                    || String.valueOf(size).equals(properties.getProperty("size")) == false
+                    || String.valueOf(lastModified).equals(properties.getProperty("lastModified")) == false)
+                return null;
+            final Descriptor descriptor = new Descriptor(Boolean.parseBoolean(properties.getProperty("found")));
+            if (properties.getProperty("major") != null)
+                descriptor.binaryVersions = new int[]{Integer.parseInt(properties.getProperty("major")),
+                        Integer.parseInt(properties.getProperty("minor"))};
+            if (Boolean.parseBoolean(properties.getProperty("module"))) {
+                descriptor.doc = properties.getProperty("doc");
+                descriptor.license = properties.getProperty("license");
+                if (properties.getProperty("by") != null) {
+                    descriptor.authors = new String[Integer.parseInt(properties.getProperty("by"))];
+                    for (int i = 0; i < descriptor.authors.length; i++) {
+                        descriptor.authors[i] = properties.getProperty("by." + i);
+                    }
+                }
+                descriptor.dependencies = new ArrayList<ModuleInfo>();
+                final int dependencies = Integer.parseInt(properties.getProperty("dependencies", "0"));
+                for (int i = 0; i < dependencies; i++) {
+                    final String prefix = "dependency." + i + ".";
+                    descriptor.dependencies.add(new ModuleInfo(properties.getProperty(prefix + "name"),
+                            properties.getProperty(prefix + "version"),
+                            Boolean.parseBoolean(properties.getProperty(prefix + "optional")),
+                            Boolean.parseBoolean(properties.getProperty(prefix + "export"))));
+                }
+            }
+            return descriptor;
+        } catch (Exception e) {
+            // read it again
+            return null;
+        }
+    }
+
+    private static void store(File file, long size, long lastModified, Descriptor descriptor) {
+        final Properties properties = new Properties();
+        properties.setProperty("format", FORMAT);
+        properties.setProperty("size", String.valueOf(size));
+        properties.setProperty("lastModified", String.valueOf(lastModified));
+        properties.setProperty("found", String.valueOf(descriptor.found));
+        if (descriptor.binaryVersions != null) {
+            properties.setProperty("major", String.valueOf(descriptor.binaryVersions[0]));
+            properties.setProperty("minor", String.valueOf(descriptor.binaryVersions[1]));
+        }
+        if (descriptor.dependencies != null) {
+            properties.setProperty("module", "true");
+            if (descriptor.doc != null)
+                properties.setProperty("doc", descriptor.doc);
+            if (descriptor.license != null)
+                properties.setProperty("license", descriptor.license);
+            if (descriptor.authors != null) {
+                properties.setProperty("by", String.valueOf(descriptor.authors.length));
+                for (int i = 0; i < descriptor.authors.length; i++) {
+                    properties.setProperty("by." + i, descriptor.authors[i]);
+                }
+            }
+            properties.setProperty("dependencies", String.valueOf(descriptor.dependencies.size()));
+            for (int i = 0; i < descriptor.dependencies.size(); i++) {
+                final ModuleInfo dependency = descriptor.dependencies.get(i);
+                final String prefix = "dependency." + i + ".";
+                properties.setProperty(prefix + "name", dependency.getName());
+                properties.setProperty(prefix + "version", dependency.getVersion());
+                properties.setProperty(prefix + "optional", String.valueOf(dependency.isOptional()));
+                properties.setProperty(prefix + "export", String.valueOf(dependency.isExport()));
+            }
+        }
+        try {
+            IOUtils.storeProperties(properties, file, null);
+        } catch (IOException e) {
+            // it is only a cache
+        }
+    }
+
+    /**
+     * The module descriptor data we care about.
+     */
+    static class Descriptor {
+        final boolean found;
+        // null if there is no @Ceylon annotation
+        int[] binaryVersions;
+        // null if there is no @Module annotation
+        List<ModuleInfo> dependencies;
+        String doc;
+        String license;
+        String[] authors;
+
+        Descriptor(boolean found) {
+            this.found = found;
+        }
+    }
+}
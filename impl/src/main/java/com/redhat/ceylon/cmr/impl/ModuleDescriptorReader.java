@@ -0,0 +1,245 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.redhat.ceylon.cmr.api.ModuleInfo;
+
+/**
+ * Reads the module descriptor of an archive: we look up the module class in the zip
+ * directory, and read only the runtime visible annotations of that one class.
+ */
+final class ModuleDescriptorReader {
+
+    private static final String JAVA = "java";
+    private static final String MODULE_ANNOTATION = "Lcom/redhat/ceylon/compiler/java/metadata/Module;";
+    private static final String CEYLON_ANNOTATION = "Lcom/redhat/ceylon/compiler/java/metadata/Ceylon;";
+    private static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+
+    private final Object[] pool;
+    private final DataInputStream in;
+
+    private ModuleDescriptorReader(DataInputStream in) throws IOException {
+        this.in = in;
+        if (in.readInt() != 0xCAFEBABE)
+            throw new IOException("Not a class file");
+        in.readUnsignedShort(); // minor
+        in.readUnsignedShort(); // major
+        pool = new Object[in.readUnsignedShort()];
+        for (int i = 1; i < pool.length; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    pool[i] = in.readUTF();
+                    break;
+                case 3: // Integer
+                    pool[i] = in.readInt();
+                    break;
+                case 4: // Float
+                    in.readInt();
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.readLong();
+                    // takes two entries
+                    i++;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.readInt();
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag: " + tag);
+            }
+        }
+    }
+
+    /**
+     * Reads the module descriptor from the archive, or returns null if it has none.
+     */
+    static ModuleDescriptorCache.Descriptor read(String moduleName, File archive) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            final ZipEntry entry = zip.getEntry(moduleName.replace('.', '/') + "/module_.class");
+            if (entry == null)
+                return null;
+            // closes the stream
+            IOUtils.copyStream(zip.getInputStream(entry), bytes);
+        } finally {
+            zip.close();
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        return new ModuleDescriptorReader(in).readDescriptor();
+    }
+
+    private ModuleDescriptorCache.Descriptor readDescriptor() throws IOException {
+        in.readUnsignedShort(); // access flags
+        in.readUnsignedShort(); // this class
+        in.readUnsignedShort(); // super class
+        skip(in.readUnsignedShort() * 2); // interfaces
+        skipMembers(); // fields
+        skipMembers(); // methods
+
+        final ModuleDescriptorCache.Descriptor descriptor = new ModuleDescriptorCache.Descriptor(true);
+        final int attributes = in.readUnsignedShort();
+        for (int i = 0; i < attributes; i++) {
+            final Object name = pool[in.readUnsignedShort()];
+            final int length = in.readInt();
+            if (RUNTIME_VISIBLE_ANNOTATIONS.equals(name) == false) {
+                skip(length);
+                continue;
+            }
+            final int annotations = in.readUnsignedShort();
+            for (int j = 0; j < annotations; j++) {
+                final String type = (String) pool[in.readUnsignedShort()];
+                final Map<String, Object> values = readValues();
+                if (CEYLON_ANNOTATION.equals(type))
+                    descriptor.binaryVersions = new int[]{asInt(values.get("major")), asInt(values.get("minor"))};
+                else if (MODULE_ANNOTATION.equals(type))
+                    readModule(values, descriptor);
+            }
+        }
+        return descriptor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void readModule(Map<String, Object> values, ModuleDescriptorCache.Descriptor descriptor) {
+        descriptor.doc = (String) values.get("doc");
+        descriptor.license = (String) values.get("license");
+        final List<Object> by = (List<Object>) values.get("by");
+        if (by != null)
+            descriptor.authors = by.toArray(new String[by.size()]);
+        descriptor.dependencies = new ArrayList<ModuleInfo>();
+        final List<Object> imports = (List<Object>) values.get("dependencies");
+        if (imports == null)
+            return;
+        for (Object im : imports) {
+            final Map<String, Object> dependency = (Map<String, Object>) im;
+            final String name = asString(dependency, "name");
+            if (JAVA.equalsIgnoreCase(name) == false) {
+                descriptor.dependencies.add(new ModuleInfo(
+                        name,
+                        asString(dependency, "version"),
+                        asInt(dependency.get("optional")) != 0,
+                        asInt(dependency.get("export")) != 0));
+            }
+        }
+    }
+
+    private Map<String, Object> readValues() throws IOException {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        final int pairs = in.readUnsignedShort();
+        for (int i = 0; i < pairs; i++) {
+            final String name = (String) pool[in.readUnsignedShort()];
+            values.put(name, readValue());
+        }
+        return values;
+    }
+
+    private Object readValue() throws IOException {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'F':
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'Z':
+            case 's':
+                // only the int and string constants are kept
+                return pool[in.readUnsignedShort()];
+            case 'e':
+                in.readUnsignedShort();
+                in.readUnsignedShort();
+                return null;
+            case 'c':
+                in.readUnsignedShort();
+                return null;
+            case '@':
+                in.readUnsignedShort(); // type
+                return readValues();
+            case '[': {
+                final int length = in.readUnsignedShort();
+                final List<Object> values = new ArrayList<Object>(length);
+                for (int i = 0; i < length; i++) {
+                    values.add(readValue());
+                }
+                return values;
+            }
+            default:
+                throw new IOException("Invalid annotation value tag: " + (char) tag);
+        }
+    }
+
+    private void skipMembers() throws IOException {
+        final int members = in.readUnsignedShort();
+        for (int i = 0; i < members; i++) {
+            skip(6); // access flags, name, descriptor
+            final int attributes = in.readUnsignedShort();
+            for (int j = 0; j < attributes; j++) {
+                in.readUnsignedShort();
+                skip(in.readInt());
+            }
+        }
+    }
+
+    private void skip(int bytes) throws IOException {
+        if (in.skipBytes(bytes) != bytes)
+            throw new IOException("Truncated class file");
+    }
+
+    private static int asInt(Object value) {
+        return (value instanceof Integer) ? (Integer) value : 0;
+    }
+
+    private static String asString(Map<String, Object> values, String name) {
+        final Object value = values.get(name);
+        if (value instanceof String == false)
+            throw new IllegalArgumentException("Missing required annotation attribute: " + name);
+        return (String) value;
+    }
+}
@@ -0,0 +1,1151 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
+import com.redhat.ceylon.cmr.api.ModuleQuery;
+import com.redhat.ceylon.cmr.api.ModuleSearchResult;
+import com.redhat.ceylon.cmr.api.ModuleVersionDetails;
+import com.redhat.ceylon.cmr.api.ModuleVersionQuery;
+import com.redhat.ceylon.cmr.api.ModuleVersionResult;
+
+/**
+ * Index of the modules of a file repository: module, versions, artifacts, and what
+ * their descriptors say. Module search and completion are answered from it, without
+ * listing the whole tree or opening archives every time.
+ * <p/>
+ * It is kept on disk, and brought up to date by checking the folder timestamps, so
+ * only changed folders are listed again. Archives are only read the first time their
+ * descriptor is needed, and again if their timestamp or size changed.
+ * <p/>
+ * Searches go through an inverted index, by type, of the trigrams of the module names,
+ * docs, licenses and authors, so only the modules which may match are checked. Its
+ * postings are in module order, so a query of a single trigram, or none, has its
+ * matches right there, and any page of them costs no more than the first. Completion
+ * goes through a prefix tree of the module names, which knows which types and binary
+ * versions can be found below each of its nodes.
+ * <p/>
+ * We remember how far we got matching the last queries, so asking for the next page
+ * of a search does not match the previous pages again.
+ */
+public class ModuleIndex {
+
+    public static final File DEFAULT_DIR = new File(System.getProperty("ceylon.cmr.index.dir",
+            System.getProperty("user.home") + File.separator + ".ceylon" + File.separator + "index"));
+    public static final long DEFAULT_CHECK_INTERVAL = Long.getLong("ceylon.cmr.index.checkInterval", 1000L);
+    /**
+     * Thirty days.
+     */
+    public static final long DEFAULT_MAX_AGE = Long.getLong("ceylon.cmr.index.maxAge", 30L * 24 * 60 * 60 * 1000);
+
+    private static final int FORMAT = 1;
+    private static final String[] SUFFIXES = {ArtifactContext.CAR, ArtifactContext.JAR, ArtifactContext.JS, ArtifactContext.SRC};
+    // folders changed this recently may still change within the timestamp granularity
+    private static final long RACY = 2000L;
+    private static final int GRAM = 3;
+    private static final int MAX_SEARCHES = 16;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    // the index dirs we already pruned
+    private static final Set<File> pruned = Collections.synchronizedSet(new HashSet<File>());
+
+    private final File root;
+    private final File file;
+    private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+    private Map<String, Folder> folders;
+    private Map<String, Module> modules;
+    // the searchable modules in order, built on first search
+    private List<Module> searchable;
+    // for each type, their positions there by trigram of what a search of that type looks at,
+    // and the positions of all of them of that type
+    private Map<ModuleQuery.Type, Map<String, Posting>> grams;
+    private Map<ModuleQuery.Type, Posting> typed;
+    // the module names, built on first completion
+    private Trie trie;
+    private boolean trieHasBinaries;
+    // the last searches, and how far we matched them
+    private final Map<String, Search> searches = new LinkedHashMap<String, Search>(MAX_SEARCHES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Search> eldest) {
+            return size() > MAX_SEARCHES;
+        }
+    };
+    private long lastCheck;
+    private boolean dirty;
+    private long archivesRead;
+    private long modulesChecked;
+
+    /**
+     * @param root the repository folder
+     * @param dir where to keep the index, or null to keep it in memory only
+     */
+    public ModuleIndex(File root, File dir) {
+        this.root = root.getAbsoluteFile();
+        this.file = (dir != null) ? new File(dir, indexName(this.root)) : null;
+    }
+
+    private static String indexName(File root) {
+        try {
+            return IOUtils.sha1(new ByteArrayInputStream(root.getPath().getBytes("UTF-8"))) + ".index";
+        } catch (UnsupportedEncodingException e) {
+            // can't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Sets how long we trust the index without checking the folder timestamps, in ms.
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * The number of archives we had to open to read descriptors.
+     */
+    public synchronized long getArchivesRead() {
+        return archivesRead;
+    }
+
+    /**
+     * The number of modules we had to check against search queries.
+     */
+    public synchronized long getModulesChecked() {
+        return modulesChecked;
+    }
+
+    /**
+     * Something changed in this file or folder, check it on next use.
+     */
+    public synchronized void invalidate(File changed) {
+        lastCheck = 0;
+        if (folders == null)
+            return;
+        // its folder and all the folders above, which may have been created
+        File f = changed.getAbsoluteFile().getParentFile();
+        final Folder parent = (f != null) ? folders.get(getPath(f)) : null;
+        if (parent != null)
+            parent.artifacts.remove(changed.getName());
+        while (f != null) {
+            final String path = getPath(f);
+            if (path == null)
+                break;
+            final Folder folder = folders.get(path);
+            if (folder != null)
+                folder.lastModified = -1;
+            f = f.getParentFile();
+        }
+    }
+
+    public synchronized void completeModules(ModuleQuery query, ModuleSearchResult result) {
+        refresh();
+        final Trie trie = getTrie(query.getBinaryMajor() != null || query.getBinaryMinor() != null);
+        final String name = query.getName();
+        // find where the completed part ends
+        Trie node = trie;
+        int i = 0;
+        while (node != null && i < name.length()) {
+            final Trie child = node.children.get(name.charAt(i));
+            if (child == null || name.regionMatches(i, child.edge, 0, Math.min(child.edge.length(), name.length() - i)) == false)
+                node = null;
+            else
+                node = child;
+            i += (child != null) ? child.edge.length() : 0;
+        }
+        if (node != null)
+            complete(node, query, result, new long[]{0});
+        save();
+    }
+
+    private boolean complete(Trie node, ModuleQuery query, ModuleSearchResult result, long[] found) {
+        if (node.mayHave(query) == false)
+            return true;
+        if (node.module != null && node.module.hasType(this, query)) {
+            if (query.getCount() != null && found[0] >= query.getCount()) {
+                // there are more
+                result.setHasMoreResults(true);
+                return false;
+            }
+            found[0]++;
+            addSearchResult(node.module, query.getType(), result);
+        }
+        for (Trie child : node.children.values()) {
+            // we stop looking below the first module under the completed part
+            if (node.module != null && child.edge.charAt(0) == '.')
+                continue;
+            if (complete(child, query, result, found) == false)
+                return false;
+        }
+        return true;
+    }
+
+    private Trie getTrie(boolean withBinaries) {
+        if (trie == null) {
+            trie = new Trie("");
+            trieHasBinaries = false;
+            for (Module module : modules.values()) {
+                trie.add(module.name, module);
+            }
+        }
+        if (withBinaries && trieHasBinaries == false) {
+            // bring the descriptors up to date first
+            for (Module module : modules.values()) {
+                for (Map<String, Artifact> artifacts : module.versions.values()) {
+                    if (artifacts.containsKey(ArtifactContext.CAR))
+                        artifacts.get(ArtifactContext.CAR).read(this);
+                }
+            }
+            trie.annotateBinaries();
+            trieHasBinaries = true;
+        }
+        return trie;
+    }
+
+    public synchronized void searchModules(ModuleQuery query, ModuleSearchResult result) {
+        refresh();
+        if (grams == null)
+            buildGrams();
+        final long start = (query.getStart() != null) ? query.getStart() : 0;
+        final Long count = query.getCount();
+        final Posting exact = getMatches(query);
+        if (exact != null) {
+            final long end = (count != null) ? Math.min(start + count, exact.size) : exact.size;
+            for (long i = start; i < end; i++) {
+                addSearchResult(searchable.get(exact.positions[(int) i]), query.getType(), result);
+            }
+            if (count != null && exact.size > start + count)
+                result.setHasMoreResults(true);
+            save();
+            return;
+        }
+        final String key = query.getType() + "|" + query.getBinaryMajor() + "|" + query.getBinaryMinor() + "|" + query.getName();
+        Search search = searches.get(key);
+        if (search == null) {
+            search = new Search(getCandidates(query));
+            searches.put(key, search);
+        }
+        // one more than the page, to know if there is a next page
+        final List<Module> matched = search.match(this, query, (count != null) ? start + count + 1 : Long.MAX_VALUE);
+        final long end = (count != null) ? Math.min(start + count, matched.size()) : matched.size();
+        for (long i = start; i < end; i++) {
+            addSearchResult(matched.get((int) i), query.getType(), result);
+        }
+        if (count != null && matched.size() > start + count)
+            result.setHasMoreResults(true);
+        save();
+    }
+
+    public synchronized void completeVersions(ModuleVersionQuery query, ModuleVersionResult result) {
+        refresh();
+        final Module module = modules.get(query.getName());
+        if (module != null) {
+            for (Map.Entry<String, Map<String, Artifact>> entry : module.versions.entrySet()) {
+                final String version = entry.getKey();
+                if (query.getVersion() != null && !version.startsWith(query.getVersion()))
+                    continue;
+                if (result.hasVersion(version))
+                    continue;
+                for (String suffix : query.getType().getSuffixes()) {
+                    final Artifact artifact = entry.getValue().get(suffix);
+                    if (artifact == null)
+                        continue;
+                    if (suffix.equals(ArtifactContext.CAR) && !artifact.checkBinaryVersion(this, query))
+                        continue;
+                    final ModuleVersionDetails details = result.addVersion(version);
+                    if (details != null && artifact.hasDescriptor()) {
+                        // only read the archive if the details are wanted
+                        details.setLoader(new ModuleVersionDetails.Loader() {
+                            @Override
+                            public void load(ModuleVersionDetails details) {
+                                synchronized (ModuleIndex.this) {
+                                    artifact.read(ModuleIndex.this);
+                                    details.setDoc(artifact.doc);
+                                    details.setLicense(artifact.license);
+                                    details.getAuthors().addAll(artifact.authors);
+                                    save();
+                                }
+                            }
+                        });
+                    }
+                    break;
+                }
+            }
+        }
+        save();
+    }
+
+    /**
+     * The modules which match this query, if the postings tell us exactly: for no text, or a
+     * single trigram, without binary versions to check. Null if they have to be checked.
+     */
+    private Posting getMatches(ModuleQuery query) {
+        if (query.getType() == ModuleQuery.Type.JVM
+                && (query.getBinaryMajor() != null || query.getBinaryMinor() != null))
+            return null;
+        if (query.getName().isEmpty())
+            return typed.get(query.getType());
+        if (query.getName().length() == GRAM) {
+            final Posting posting = grams.get(query.getType()).get(query.getName());
+            return (posting != null) ? posting : Posting.EMPTY;
+        }
+        return null;
+    }
+
+    /**
+     * The modules which may match this query, in the order of a depth first walk of the folders.
+     */
+    private Candidates getCandidates(ModuleQuery query) {
+        if (query.getName().length() < GRAM)
+            return new Candidates(new Posting[]{typed.get(query.getType())});
+        final Map<String, Posting> postings = grams.get(query.getType());
+        final Set<String> queryGrams = getGrams(query.getName());
+        final Posting[] all = new Posting[queryGrams.size()];
+        int i = 0;
+        for (String gram : queryGrams) {
+            final Posting posting = postings.get(gram);
+            if (posting == null)
+                return new Candidates(new Posting[]{Posting.EMPTY});
+            all[i++] = posting;
+        }
+        return new Candidates(all);
+    }
+
+    private void buildGrams() {
+        searchable = new ArrayList<Module>();
+        for (Module module : modules.values()) {
+            if (hasModuleAbove(module, 1) == false && module.isUnder(ArtifactContext.DOCS) == false)
+                searchable.add(module);
+        }
+        Collections.sort(searchable, MODULE_ORDER);
+        // bring the descriptors up to date first
+        for (Module module : searchable) {
+            for (Map<String, Artifact> artifacts : module.versions.values()) {
+                for (Artifact artifact : artifacts.values()) {
+                    artifact.read(this);
+                }
+            }
+        }
+        grams = new HashMap<ModuleQuery.Type, Map<String, Posting>>();
+        typed = new HashMap<ModuleQuery.Type, Posting>();
+        for (ModuleQuery.Type type : ModuleQuery.Type.values()) {
+            final Map<String, Posting> postings = new HashMap<String, Posting>();
+            final Posting all = new Posting();
+            for (int i = 0; i < searchable.size(); i++) {
+                final Set<String> moduleGrams = getSearchedGrams(searchable.get(i), type);
+                if (moduleGrams == null)
+                    continue;
+                all.add(i);
+                for (String gram : moduleGrams) {
+                    Posting posting = postings.get(gram);
+                    if (posting == null) {
+                        posting = new Posting();
+                        postings.put(gram, posting);
+                    }
+                    posting.add(i);
+                }
+            }
+            grams.put(type, postings);
+            typed.put(type, all);
+        }
+    }
+
+    /**
+     * The trigrams of what a search of that type looks at, see {@link Module#matches},
+     * or null if the module has nothing of that type.
+     */
+    private static Set<String> getSearchedGrams(Module module, ModuleQuery.Type type) {
+        Set<String> ret = null;
+        for (Map<String, Artifact> artifacts : module.versions.values()) {
+            final Artifact car = artifacts.get(ArtifactContext.CAR);
+            final Artifact jar = artifacts.get(ArtifactContext.JAR);
+            final Artifact metadata;
+            switch (type) {
+                case JVM:
+                    if (car == null && jar == null)
+                        continue;
+                    if (car != null && jar != null) {
+                        // both are looked at
+                        ret = addGrams(ret, module.name, jar);
+                    }
+                    metadata = (car != null) ? car : jar;
+                    break;
+                case JS:
+                    if (artifacts.containsKey(ArtifactContext.JS) == false)
+                        continue;
+                    metadata = car;
+                    break;
+                case SRC:
+                    if (artifacts.containsKey(ArtifactContext.SRC) == false)
+                        continue;
+                    metadata = car;
+                    break;
+                default:
+                    continue;
+            }
+            ret = addGrams(ret, module.name, metadata);
+        }
+        return ret;
+    }
+
+    private static Set<String> addGrams(Set<String> grams, String name, Artifact metadata) {
+        if (grams == null) {
+            grams = new HashSet<String>();
+            grams.addAll(getGrams(name.toLowerCase()));
+        }
+        if (metadata != null) {
+            addGrams(grams, metadata.doc);
+            addGrams(grams, metadata.license);
+            for (String author : metadata.authors) {
+                addGrams(grams, author);
+            }
+        }
+        return grams;
+    }
+
+    private static void addGrams(Set<String> grams, String text) {
+        if (text != null)
+            grams.addAll(getGrams(text.toLowerCase()));
+    }
+
+    private static Set<String> getGrams(String text) {
+        final Set<String> ret = new HashSet<String>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            ret.add(text.substring(i, i + GRAM));
+        }
+        return ret;
+    }
+
+    private boolean hasModuleAbove(Module module, int depth) {
+        for (int i = depth; i < module.segments.length; i++) {
+            if (modules.containsKey(join(module.segments, i)))
+                return true;
+        }
+        return false;
+    }
+
+    private void addSearchResult(Module module, ModuleQuery.Type type, ModuleSearchResult result) {
+        final SortedSet<String> versions = new TreeSet<String>();
+        for (Map.Entry<String, Map<String, Artifact>> entry : module.versions.entrySet()) {
+            for (String suffix : type.getSuffixes()) {
+                if (entry.getValue().containsKey(suffix)) {
+                    versions.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        final Artifact car = module.versions.get(versions.last()).get(ArtifactContext.CAR);
+        if (car != null)
+            car.read(this);
+        result.addResult(module.name,
+                car != null ? car.doc : null,
+                car != null ? car.license : null,
+                car != null ? new TreeSet<String>(car.authors) : new TreeSet<String>(),
+                versions);
+    }
+
+    private void refresh() {
+        final long now = System.currentTimeMillis();
+        if (modules != null && now - lastCheck < checkInterval)
+            return;
+        if (folders == null)
+            load();
+        final Set<String> seen = new HashSet<String>();
+        final boolean changed = walk(root, "", seen, now);
+        if (changed || folders.keySet().retainAll(seen) || modules == null) {
+            buildModules();
+            dirty = true;
+        }
+        lastCheck = now;
+    }
+
+    private boolean walk(File dir, String path, Set<String> seen, long now) {
+        seen.add(path);
+        Folder folder = folders.get(path);
+        final long lastModified = dir.lastModified();
+        boolean changed = false;
+        if (folder == null || folder.lastModified != lastModified) {
+            folder = list(dir, path, folder);
+            // list it again next time if it may still change unnoticed
+            folder.lastModified = (now - lastModified < RACY) ? -1 : lastModified;
+            folders.put(path, folder);
+            changed = true;
+        }
+        for (String sub : folder.folders) {
+            changed |= walk(new File(dir, sub), path.isEmpty() ? sub : path + "/" + sub, seen, now);
+        }
+        return changed;
+    }
+
+    private Folder list(File dir, String path, Folder old) {
+        final Folder folder = new Folder();
+        final File[] files = dir.listFiles();
+        if (files == null)
+            return folder;
+        final String[] segments = path.isEmpty() ? new String[0] : path.split("/");
+        final String module = segments.length >= 2 ? join(segments, segments.length - 1) : null;
+        final String version = segments.length >= 2 ? segments[segments.length - 1] : null;
+        for (File f : files) {
+            final String name = f.getName();
+            if (f.isDirectory()) {
+                if (name.equals(ArtifactContext.DOCS) == false)
+                    folder.folders.add(name);
+                continue;
+            }
+            if (module == null)
+                continue;
+            for (String suffix : SUFFIXES) {
+                if (name.equals(AbstractRepository.buildArtifactName(module, version, suffix))) {
+                    Artifact artifact = (old != null) ? old.artifacts.get(name) : null;
+                    if (artifact == null)
+                        artifact = new Artifact(f, module, suffix);
+                    folder.artifacts.put(name, artifact);
+                    break;
+                }
+            }
+        }
+        Collections.sort(folder.folders);
+        return folder;
+    }
+
+    private void buildModules() {
+        modules = new TreeMap<String, Module>();
+        grams = null;
+        searchable = null;
+        trie = null;
+        searches.clear();
+        for (Map.Entry<String, Folder> entry : folders.entrySet()) {
+            final Folder folder = entry.getValue();
+            if (folder.artifacts.isEmpty())
+                continue;
+            final String[] segments = entry.getKey().split("/");
+            final String name = join(segments, segments.length - 1);
+            Module module = modules.get(name);
+            if (module == null) {
+                module = new Module(name, Arrays.copyOf(segments, segments.length - 1));
+                modules.put(name, module);
+            }
+            final Map<String, Artifact> artifacts = new HashMap<String, Artifact>();
+            for (Artifact artifact : folder.artifacts.values()) {
+                artifacts.put(artifact.suffix, artifact);
+            }
+            module.versions.put(segments[segments.length - 1], artifacts);
+        }
+    }
+
+    private String getPath(File f) {
+        final String path = f.getPath();
+        final String rootPath = root.getPath();
+        if (path.equals(rootPath))
+            return "";
+        if (path.startsWith(rootPath + File.separator) == false)
+            return null;
+        return path.substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+    }
+
+    private static String join(String[] segments, int length) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0)
+                sb.append('.');
+            sb.append(segments[i]);
+        }
+        return sb.toString();
+    }
+
+    private void load() {
+        folders = new HashMap<String, Folder>();
+        if (file == null)
+            return;
+        prune(file.getParentFile());
+        if (file.isFile() == false)
+            return;
+        // so that pruning sees it is still used
+        final long now = System.currentTimeMillis();
+        if (now - file.lastModified() > DAY)
+            file.setLastModified(now);
+        try {
+            final Properties properties = new Properties();
+            final InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+            if (String.valueOf(FORMAT).equals(properties.getProperty("format")) == false
+                    || root.getPath().equals(properties.getProperty("root")) == false)
+                return;
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith("folder:")) {
+                    final String path = key.substring("folder:".length());
+                    final Folder folder = new Folder();
+                    folder.lastModified = Long.parseLong(properties.getProperty(key));
+                    final String subs = properties.getProperty("folders:" + path, "");
+                    if (subs.isEmpty() == false)
+                        folder.folders.addAll(Arrays.asList(subs.split("/")));
+                    folders.put(path, folder);
+                }
+            }
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith("artifact:") && key.endsWith(":suffix")) {
+                    final String path = key.substring("artifact:".length(), key.length() - ":suffix".length());
+                    final int slash = path.lastIndexOf('/');
+                    final Folder folder = folders.get(path.substring(0, Math.max(slash, 0)));
+                    final String[] segments = path.split("/");
+                    if (folder != null && segments.length >= 3)
+                        folder.artifacts.put(path.substring(slash + 1),
+                                new Artifact(new File(root, path), join(segments, segments.length - 2), properties, "artifact:" + path + ":"));
+                }
+            }
+        } catch (Exception e) {
+            // start over
+            folders.clear();
+        }
+    }
+
+    /**
+     * Deletes the index files of repositories which are gone, like temporary ones,
+     * or which we did not use for a while. Once a day at most.
+     */
+    private static void prune(File dir) {
+        if (pruned.add(dir) == false)
+            return;
+        final long now = System.currentTimeMillis();
+        final File marker = new File(dir, "pruned");
+        if (now - marker.lastModified() < DAY)
+            return;
+        final File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        try {
+            if (marker.createNewFile() == false)
+                marker.setLastModified(now);
+        } catch (IOException e) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().endsWith(".index")
+                    && (now - f.lastModified() > DEFAULT_MAX_AGE || hasRoot(f) == false))
+                f.delete();
+        }
+    }
+
+    private static boolean hasRoot(File index) {
+        final Properties properties = new Properties();
+        try {
+            final InputStream is = new FileInputStream(index);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            // in use, or gone already
+            return true;
+        }
+        final String root = properties.getProperty("root");
+        return root != null && new File(root).isDirectory();
+    }
+
+    private void save() {
+        if (dirty == false || file == null)
+            return;
+        dirty = false;
+        if (root.isDirectory() == false) {
+            // nothing worth keeping for a missing repository
+            file.delete();
+            return;
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("format", String.valueOf(FORMAT));
+        properties.setProperty("root", root.getPath());
+        for (Map.Entry<String, Folder> entry : folders.entrySet()) {
+            final String path = entry.getKey();
+            final Folder folder = entry.getValue();
+            properties.setProperty("folder:" + path, String.valueOf(folder.lastModified));
+            if (folder.folders.isEmpty() == false)
+                properties.setProperty("folders:" + path, join(folder.folders, "/"));
+            for (Map.Entry<String, Artifact> artifact : folder.artifacts.entrySet()) {
+                final String prefix = "artifact:" + (path.isEmpty() ? "" : path + "/") + artifact.getKey() + ":";
+                artifact.getValue().store(properties, prefix);
+            }
+        }
+        try {
+            IOUtils.storeProperties(properties, file, "Module index for " + root);
+        } catch (IOException e) {
+            // it is only a cache
+        }
+    }
+
+    private static String join(List<String> parts, String separator) {
+        final StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0)
+                sb.append(separator);
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    private static final Comparator<Module> MODULE_ORDER = new Comparator<Module>() {
+        @Override
+        public int compare(Module a, Module b) {
+            final int n = Math.min(a.segments.length, b.segments.length);
+            for (int i = 0; i < n; i++) {
+                final int c = a.segments[i].compareToIgnoreCase(b.segments[i]);
+                if (c != 0)
+                    return c;
+            }
+            return a.segments.length - b.segments.length;
+        }
+    };
+
+    /**
+     * The candidates of a search, and those we found to match so far.
+     */
+    private static class Search {
+        private final Candidates candidates;
+        private final List<Module> matched = new ArrayList<Module>();
+
+        private Search(Candidates candidates) {
+            this.candidates = candidates;
+        }
+
+        private List<Module> match(ModuleIndex index, ModuleQuery query, long needed) {
+            int next;
+            while (matched.size() < needed && (next = candidates.next()) >= 0) {
+                final Module module = index.searchable.get(next);
+                index.modulesChecked++;
+                if (module.matches(index, query))
+                    matched.add(module);
+            }
+            return matched;
+        }
+    }
+
+    /**
+     * The sorted positions of the searchable modules having something.
+     */
+    private static class Posting {
+        private static final Posting EMPTY = new Posting();
+
+        private int[] positions = new int[4];
+        private int size;
+
+        private void add(int position) {
+            if (size == positions.length)
+                positions = Arrays.copyOf(positions, size * 2);
+            positions[size++] = position;
+        }
+
+        /**
+         * Where the first position not below that one is, looking from there on.
+         */
+        private int seek(int from, int position) {
+            // gallop, then binary search
+            int step = 1;
+            int high = from;
+            while (high < size && positions[high] < position) {
+                from = high + 1;
+                high += step;
+                step *= 2;
+            }
+            high = Math.min(high, size);
+            while (from < high) {
+                final int mid = (from + high) >>> 1;
+                if (positions[mid] < position)
+                    from = mid + 1;
+                else
+                    high = mid;
+            }
+            return from;
+        }
+    }
+
+    /**
+     * The positions in all of some postings, in order, as we go.
+     */
+    private static class Candidates {
+        private final Posting[] postings;
+        private final int[] cursors;
+
+        private Candidates(Posting[] postings) {
+            // the smallest one leads
+            Arrays.sort(postings, new Comparator<Posting>() {
+                @Override
+                public int compare(Posting a, Posting b) {
+                    return a.size - b.size;
+                }
+            });
+            this.postings = postings;
+            this.cursors = new int[postings.length];
+        }
+
+        /**
+         * The next candidate, or -1 if there is none.
+         */
+        private int next() {
+            final Posting lead = postings[0];
+            while (cursors[0] < lead.size) {
+                final int position = lead.positions[cursors[0]++];
+                boolean all = true;
+                for (int i = 1; i < postings.length && all; i++) {
+                    cursors[i] = postings[i].seek(cursors[i], position);
+                    all = cursors[i] < postings[i].size && postings[i].positions[cursors[i]] == position;
+                }
+                if (all)
+                    return position;
+            }
+            return -1;
+        }
+    }
+
+    private static final int JS = 1;
+    private static final int CAR = 2;
+    private static final int JAR = 4;
+    private static final int SRC = 8;
+
+    /**
+     * A compressed prefix tree node, knowing the artifact types and car binary versions below it.
+     */
+    private static class Trie {
+        private String edge;
+        private final TreeMap<Character, Trie> children = new TreeMap<Character, Trie>();
+        private Module module;
+        private int types;
+        private final Set<String> binaries = new HashSet<String>();
+
+        private Trie(String edge) {
+            this.edge = edge;
+        }
+
+        private void add(String name, Module module) {
+            types |= module.getTypes();
+            if (name.isEmpty()) {
+                this.module = module;
+                return;
+            }
+            Trie child = children.get(name.charAt(0));
+            if (child == null) {
+                child = new Trie(name);
+                children.put(name.charAt(0), child);
+                child.add("", module);
+                return;
+            }
+            int common = 0;
+            while (common < child.edge.length() && common < name.length()
+                    && child.edge.charAt(common) == name.charAt(common))
+                common++;
+            if (common < child.edge.length()) {
+                // split the edge
+                final Trie split = new Trie(child.edge.substring(0, common));
+                split.types = child.types;
+                child.edge = child.edge.substring(common);
+                split.children.put(child.edge.charAt(0), child);
+                children.put(name.charAt(0), split);
+                child = split;
+            }
+            child.add(name.substring(common), module);
+        }
+
+        private void annotateBinaries() {
+            binaries.clear();
+            if (module != null) {
+                for (Map<String, Artifact> artifacts : module.versions.values()) {
+                    final Artifact car = artifacts.get(ArtifactContext.CAR);
+                    if (car != null && car.binaryVersions != null)
+                        binaries.add(car.binaryVersions[0] + "." + car.binaryVersions[1]);
+                }
+            }
+            for (Trie child : children.values()) {
+                child.annotateBinaries();
+                binaries.addAll(child.binaries);
+            }
+        }
+
+        /**
+         * Can there be anything of the right type below this node?
+         */
+        private boolean mayHave(ModuleQuery query) {
+            switch (query.getType()) {
+                case JS:
+                    return (types & JS) != 0;
+                case SRC:
+                    return (types & SRC) != 0;
+                case JVM:
+                    if ((types & JAR) != 0)
+                        return true;
+                    if ((types & CAR) == 0)
+                        return false;
+                    if (query.getBinaryMajor() == null && query.getBinaryMinor() == null)
+                        return true;
+                    for (String binary : binaries) {
+                        final int dot = binary.indexOf('.');
+                        if ((query.getBinaryMajor() == null || binary.substring(0, dot).equals(query.getBinaryMajor().toString()))
+                                && (query.getBinaryMinor() == null || binary.substring(dot + 1).equals(query.getBinaryMinor().toString())))
+                            return true;
+                    }
+                    return false;
+            }
+            return false;
+        }
+    }
+
+    private static class Folder {
+        private long lastModified = -1;
+        private final List<String> folders = new ArrayList<String>();
+        private final Map<String, Artifact> artifacts = new HashMap<String, Artifact>();
+    }
+
+    private static class Module {
+        private final String name;
+        private final String[] segments;
+        private final Map<String, Map<String, Artifact>> versions = new TreeMap<String, Map<String, Artifact>>();
+
+        private Module(String name, String[] segments) {
+            this.name = name;
+            this.segments = segments;
+        }
+
+        private int getTypes() {
+            int types = 0;
+            for (Map<String, Artifact> artifacts : versions.values()) {
+                if (artifacts.containsKey(ArtifactContext.JS))
+                    types |= JS;
+                if (artifacts.containsKey(ArtifactContext.CAR))
+                    types |= CAR;
+                if (artifacts.containsKey(ArtifactContext.JAR))
+                    types |= JAR;
+                if (artifacts.containsKey(ArtifactContext.SRC))
+                    types |= SRC;
+            }
+            return types;
+        }
+
+        private boolean isUnder(String folder) {
+            for (String segment : segments) {
+                if (segment.equals(folder))
+                    return true;
+            }
+            return false;
+        }
+
+        private boolean hasType(ModuleIndex index, ModuleQuery query) {
+            for (Map<String, Artifact> artifacts : versions.values()) {
+                if (isOfType(index, artifacts, query))
+                    return true;
+            }
+            return false;
+        }
+
+        private boolean matches(ModuleIndex index, ModuleQuery query) {
+            final boolean nameMatches = name.toLowerCase().contains(query.getName());
+            for (Map<String, Artifact> artifacts : versions.values()) {
+                final Artifact car = artifacts.get(ArtifactContext.CAR);
+                if (query.getType() == ModuleQuery.Type.JVM) {
+                    // we match on the metadata of the archive we found
+                    if (car != null && car.checkBinaryVersion(index, query)
+                            && (nameMatches || car.matches(index, query.getName())))
+                        return true;
+                    final Artifact jar = artifacts.get(ArtifactContext.JAR);
+                    if (jar != null && (nameMatches || jar.matches(index, query.getName())))
+                        return true;
+                } else if (isOfType(index, artifacts, query)) {
+                    // for JS and SRC we fall back to the car for metadata
+                    if (nameMatches || (car != null && car.matches(index, query.getName())))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isOfType(ModuleIndex index, Map<String, Artifact> artifacts, ModuleQuery query) {
+            switch (query.getType()) {
+                case JS:
+                    return artifacts.containsKey(ArtifactContext.JS);
+                case JVM: {
+                    final Artifact car = artifacts.get(ArtifactContext.CAR);
+                    return (car != null && car.checkBinaryVersion(index, query))
+                            || artifacts.containsKey(ArtifactContext.JAR);
+                }
+                case SRC:
+                    return artifacts.containsKey(ArtifactContext.SRC);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An artifact, and what its descriptor says once we read it.
+     */
+    private static class Artifact {
+        private final File file;
+        private final String module;
+        private final String suffix;
+        private long lastModified = -1;
+        private long size = -1;
+        private String sha1;
+        private int[] binaryVersions;
+        private String doc;
+        private String license;
+        private final List<String> authors = new ArrayList<String>();
+
+        private Artifact(File file, String module, String suffix) {
+            this.file = file;
+            this.module = module;
+            this.suffix = suffix;
+        }
+
+        private Artifact(File file, String module, Properties properties, String prefix) {
+            this(file, module, properties.getProperty(prefix + "suffix"));
+            lastModified = Long.parseLong(properties.getProperty(prefix + "lastModified", "-1"));
+            size = Long.parseLong(properties.getProperty(prefix + "size", "-1"));
+            sha1 = properties.getProperty(prefix + "sha1");
+            final String major = properties.getProperty(prefix + "major");
+            if (major != null)
+                binaryVersions = new int[]{Integer.parseInt(major), Integer.parseInt(properties.getProperty(prefix + "minor"))};
+            doc = properties.getProperty(prefix + "doc");
+            license = properties.getProperty(prefix + "license");
+            final String by = properties.getProperty(prefix + "authors");
+            if (by != null && by.isEmpty() == false)
+                authors.addAll(Arrays.asList(by.split("\n")));
+        }
+
+        private void store(Properties properties, String prefix) {
+            properties.setProperty(prefix + "suffix", suffix);
+            properties.setProperty(prefix + "lastModified", String.valueOf(lastModified));
+            properties.setProperty(prefix + "size", String.valueOf(size));
+            if (sha1 != null)
+                properties.setProperty(prefix + "sha1", sha1);
+            if (binaryVersions != null) {
+                properties.setProperty(prefix + "major", String.valueOf(binaryVersions[0]));
+                properties.setProperty(prefix + "minor", String.valueOf(binaryVersions[1]));
+            }
+            if (doc != null)
+                properties.setProperty(prefix + "doc", doc);
+            if (license != null)
+                properties.setProperty(prefix + "license", license);
+            if (authors.isEmpty() == false)
+                properties.setProperty(prefix + "authors", join(authors, "\n"));
+        }
+
+        private boolean hasDescriptor() {
+            return suffix.equals(ArtifactContext.CAR) || suffix.equals(ArtifactContext.JAR);
+        }
+
+        /**
+         * Reads the descriptor, unless we already did for this very file.
+         */
+        private void read(ModuleIndex index) {
+            final long lm = file.lastModified();
+            final long length = file.length();
+            if (lm == lastModified && length == size)
+                return;
+            lastModified = lm;
+            size = length;
+            binaryVersions = null;
+            doc = null;
+            license = null;
+            authors.clear();
+            sha1 = null;
+            index.dirty = true;
+            if (hasDescriptor() == false)
+                return;
+            // what we indexed may have changed
+            index.grams = null;
+            index.searches.clear();
+            index.trieHasBinaries = false;
+            index.archivesRead++;
+            try {
+                binaryVersions = BytecodeUtils.getBinaryVersions(module, file);
+            } catch (Exception e) {
+                // can't verify
+            }
+            try {
+                BytecodeUtils.readModuleInfo(module, file, new BytecodeUtils.ModuleInfoCallback() {
+                    @Override
+                    public void storeInfo(String doc, String license, String[] authors) {
+                        Artifact.this.doc = doc;
+                        Artifact.this.license = license;
+                        if (authors != null)
+                            Artifact.this.authors.addAll(Arrays.asList(authors));
+                    }
+                });
+            } catch (Exception e) {
+                // bah
+            }
+            final File shaFile = new File(file.getPath() + ".sha1");
+            if (shaFile.isFile()) {
+                try {
+                    sha1 = IOUtils.readSha1(new FileInputStream(shaFile));
+                } catch (IOException e) {
+                    // no checksum then
+                }
+            }
+        }
+
+        private boolean checkBinaryVersion(ModuleIndex index, ModuleQuery query) {
+            if (query.getBinaryMajor() == null && query.getBinaryMinor() == null)
+                return true;
+            read(index);
+            if (binaryVersions == null)
+                return false; // can't verify
+            if (query.getBinaryMajor() != null && binaryVersions[0] != query.getBinaryMajor())
+                return false;
+            if (query.getBinaryMinor() != null && binaryVersions[1] != query.getBinaryMinor())
+                return false;
+            return true;
+        }
+
+        private boolean matches(ModuleIndex index, String query) {
+            read(index);
+            if (doc != null && doc.toLowerCase().contains(query))
+                return true;
+            if (license != null && license.toLowerCase().contains(query))
+                return true;
+            for (String author : authors) {
+                if (author.toLowerCase().contains(query))
+                    return true;
+            }
+            return false;
+        }
+    }
+}
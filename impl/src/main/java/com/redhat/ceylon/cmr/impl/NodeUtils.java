@@ -18,10 +18,12 @@
 package com.redhat.ceylon.cmr.impl;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
 import com.redhat.ceylon.cmr.api.Repository;
+import com.redhat.ceylon.cmr.spi.ContentHandle;
 import com.redhat.ceylon.cmr.spi.Node;
 import com.redhat.ceylon.cmr.spi.OpenNode;
 
@@ -165,6 +167,22 @@ public final class NodeUtils {
         return null;
     }
 
+    /**
+     * Get the HTTP content handle of a node.
+     *
+     * @param node the node
+     * @return the handle, or null if the node's content is not behind an HTTP url
+     * @throws IOException for any I/O error
+     */
+    static HttpContentHandle getHttpContentHandle(Node node) throws IOException {
+        if (node instanceof DefaultNode) {
+            final ContentHandle handle = ((DefaultNode) node).getContentHandle();
+            if (handle instanceof HttpContentHandle)
+                return (HttpContentHandle) handle;
+        }
+        return null;
+    }
+
     protected static void buildFullPath(Node node, StringBuilder path, String separator, boolean appendSeparator) {
         final Iterable<? extends Node> parents = node.getParents();
         //noinspection LoopStatementThatDoesntLoop
@@ -104,4 +104,9 @@ public class OutputRepositoryManager extends AbstractRepositoryManager {
     public ModuleSearchResult searchModules(ModuleQuery query) {
         return new ModuleSearchResult();
     }
+
+    @Override
+    public ModuleSearchResult searchModules(ModuleQuery query, ModuleSearchResult.Listener listener) {
+        return new ModuleSearchResult();
+    }
 }
@@ -17,20 +17,24 @@
 
 package com.redhat.ceylon.cmr.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
-import java.net.HttpURLConnection;
+import java.lang.ref.SoftReference;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.redhat.ceylon.cmr.api.Logger;
 import com.redhat.ceylon.cmr.spi.ContentHandle;
 import com.redhat.ceylon.cmr.spi.ContentOptions;
 import com.redhat.ceylon.cmr.spi.Node;
 import com.redhat.ceylon.cmr.spi.OpenNode;
+import com.redhat.ceylon.cmr.util.HttpConnector;
 
 /**
  * Remote content store.
@@ -39,25 +43,45 @@ import com.redhat.ceylon.cmr.spi.OpenNode;
  */
 public class RemoteContentStore extends URLContentStore {
 
+    /**
+     * Content up to this size is kept in memory when fetched optimistically,
+     * larger content is read from the response when it is downloaded.
+     */
+    public static final int DEFAULT_PREFETCH_LIMIT = 1024 * 1024;
+
+    private volatile int prefetchLimit = DEFAULT_PREFETCH_LIMIT;
+
     public RemoteContentStore(String root, Logger log) {
         super(root, log);
+        setOptimisticFetch(true);
+    }
+
+    public int getPrefetchLimit() {
+        return prefetchLimit;
+    }
+
+    /**
+     * Sets the maximum size of the content we keep in memory when fetched optimistically.
+     * For larger content, or content of unknown length, we keep the response open until
+     * it is downloaded, without holding up the other requests to the host meanwhile.
+     */
+    public void setPrefetchLimit(int prefetchLimit) {
+        this.prefetchLimit = prefetchLimit;
     }
 
     protected InputStream openStream(final URL url) throws IOException {
-        final URLConnection conn = url.openConnection();
-        if (conn instanceof HttpURLConnection) {
-            HttpURLConnection huc = (HttpURLConnection) conn;
-            addCredentials(huc);
-            InputStream stream = conn.getInputStream();
-            int code = huc.getResponseCode();
-            if (code != -1 && code != 200) {
-                log.info("Got " + code + " for url: " + url);
-                return null;
-            }
-            log.debug("Got " + code + " for url: " + url);
-            return stream;
+        final HttpConnector.Response response = request("GET", url, createHeaders());
+        final int code = response.getCode();
+        if (code != 200) {
+            response.close();
+            if (code >= 400)
+                throw new IOException("Got " + code + " for url: " + url);
+            log.info("Got " + code + " for url: " + url);
+            return null;
         }
-        return null;
+        log.debug("Got " + code + " for url: " + url);
+        // closing the stream hands the connection back
+        return response.getInputStream();
     }
 
     protected boolean exists(final URL url) throws IOException {
@@ -88,6 +112,54 @@ public class RemoteContentStore extends URLContentStore {
         return new RemoteContentHandle(node);
     }
 
+    @Override
+    protected ContentHandle fetchContentHandle(Node parent, String child, String path, Node node) {
+        final URL url = getURL(path);
+        if (url == null)
+            return null;
+        HttpConnector.Response response = null;
+        try {
+            // conditional if there is a cached copy, which the caller then revalidates with this response
+            final Map<String, String> conditional = CacheValidators.getConditionalHeaders(child);
+            final Map<String, String> headers = createHeaders();
+            if (conditional != null)
+                headers.putAll(conditional);
+            response = request("GET", url, headers);
+            final int code = response.getCode();
+            log.debug("Got " + code + " for url: " + url);
+            if (code != 200 && (conditional == null || code != 304))
+                return null;
+            final RemoteContentHandle handle = new RemoteContentHandle(node);
+            handle.lastModified = response.getLastModified();
+            final long length = response.getContentLength();
+            if (conditional == null && length >= 0 && length <= prefetchLimit) {
+                handle.prefetched = new SoftReference<byte[]>(prefetch(response.getInputStream(), (int) length));
+            } else {
+                // the download reads it from here, if there is one, so don't hold up the other requests until then
+                response.park();
+                handle.pending.set(response);
+                response = null;
+            }
+            return handle;
+        } catch (IOException e) {
+            log.debug("Failed to fetch url: " + url + ": " + e);
+            return null;
+        } finally {
+            if (response != null)
+                response.close();
+        }
+    }
+
+    private static byte[] prefetch(InputStream stream, int length) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+        final byte[] bytes = new byte[8192];
+        int cnt;
+        while ((cnt = stream.read(bytes)) != -1) {
+            baos.write(bytes, 0, cnt);
+        }
+        return baos.toByteArray();
+    }
+
     public Iterable<? extends OpenNode> find(Node parent) {
         return Collections.emptyList(); // cannot find all children
     }
@@ -113,8 +185,13 @@ public class RemoteContentStore extends URLContentStore {
         return root;
     }
 
-    private class RemoteContentHandle implements ContentHandle {
+    private class RemoteContentHandle implements HttpContentHandle {
         private final Node node;
+        // the content, which the GC may take back before it is read
+        private volatile SoftReference<byte[]> prefetched;
+        // or the response of the optimistic GET, until it is read
+        private final AtomicReference<HttpConnector.Response> pending = new AtomicReference<HttpConnector.Response>();
+        private volatile long lastModified = -1L;
 
         private RemoteContentHandle(Node node) {
             this.node = node;
@@ -125,21 +202,73 @@ public class RemoteContentStore extends URLContentStore {
         }
 
         public InputStream getBinariesAsStream() throws IOException {
+            final byte[] bytes = takePrefetched();
+            if (bytes != null)
+                return new ByteArrayInputStream(bytes);
+            final HttpConnector.Response response = pending.getAndSet(null);
+            if (response != null) {
+                if (response.getCode() == 200)
+                    return response.getInputStream();
+                // a 304 has no content
+                response.close();
+            }
             final URL url = getURL(NodeUtils.getFullPath(node, SEPARATOR));
             log.debug("Fetching resource: " + url);
             return openStream(url);
         }
 
+        public HttpConnector.Response fetch(Map<String, String> headers) throws IOException {
+            final HttpConnector.Response response = pending.getAndSet(null);
+            if (response != null) {
+                // a full response answers a conditional GET too, but we'd rather resume a download,
+                // and a 304 only answers the conditional GET it came from
+                final boolean conditional = headers != null
+                        && (headers.containsKey("If-None-Match") || headers.containsKey("If-Modified-Since"));
+                if ((headers == null || headers.containsKey("Range") == false)
+                        && (response.getCode() == 200 || conditional))
+                    return response;
+                response.close();
+            }
+            return RemoteContentStore.this.fetch(getURL(NodeUtils.getFullPath(node, SEPARATOR)), headers);
+        }
+
+        // only served once, the next read fetches it again
+        private byte[] takePrefetched() {
+            final SoftReference<byte[]> ref = prefetched;
+            prefetched = null;
+            return (ref != null) ? ref.get() : null;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(getURL(NodeUtils.getFullPath(node, SEPARATOR)));
+        }
+
+        public int getSegments(long length) {
+            return RemoteContentStore.this.getSegments(length);
+        }
+
+        public boolean isPrefetched() {
+            final SoftReference<byte[]> ref = prefetched;
+            return ref != null && ref.get() != null;
+        }
+
         public File getContentAsFile() throws IOException {
             return null;  // unsupported
         }
 
         public long getLastModified() throws IOException {
+            if (lastModified != -1L)
+                return lastModified;
             final URL url = getURL(NodeUtils.getFullPath(node, SEPARATOR));
             return lastModified(url);
         }
 
         public void clean() {
+            prefetched = null;
+            final HttpConnector.Response response = pending.getAndSet(null);
+            if (response != null)
+                response.close();
         }
     }
 
@@ -79,6 +79,11 @@ public class RepositoryManagerBuilderImpl extends RepositoryManagerBuilder {
         return this;
     }
 
+    public RepositoryManagerBuilderImpl offline(boolean offline) {
+        repository.setOffline(offline);
+        return this;
+    }
+
     protected RepositoryManagerBuilderImpl prependExternalRoot(OpenNode externalRoot) {
         repository.prependRepository(new DefaultRepository(externalRoot));
         return this;
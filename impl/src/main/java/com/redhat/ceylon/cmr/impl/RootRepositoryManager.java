@@ -22,7 +22,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.redhat.ceylon.cmr.api.ArtifactContext;
 import com.redhat.ceylon.cmr.api.ArtifactResult;
@@ -31,6 +37,7 @@ import com.redhat.ceylon.cmr.api.Repository;
 import com.redhat.ceylon.cmr.api.RepositoryException;
 import com.redhat.ceylon.cmr.spi.Node;
 import com.redhat.ceylon.cmr.spi.OpenNode;
+import com.redhat.ceylon.cmr.util.HttpConnector;
 import com.redhat.ceylon.common.config.Repositories;
 
 /**
@@ -39,6 +46,9 @@ import com.redhat.ceylon.common.config.Repositories;
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class RootRepositoryManager extends AbstractNodeRepositoryManager {
+    private static final String PART = ".part";
+    private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
     private final FileContentStore fileContentStore;
 
     private static File getRootDir() {
@@ -56,7 +66,7 @@ public class RootRepositoryManager extends AbstractNodeRepositoryManager {
             throw new IllegalArgumentException("Cannot create Ceylon cache repository directory: " + rootDir);
         }
         fileContentStore = new FileContentStore(rootDir);
-        final Repository aaca = new DefaultRepository(new RootNode(fileContentStore, fileContentStore));
+        final Repository aaca = new DefaultRepository(fileContentStore.createRoot());
         setCache(aaca);
     }
 
@@ -67,7 +77,12 @@ public class RootRepositoryManager extends AbstractNodeRepositoryManager {
                 final boolean forceOp = context.isForceOperation();
                 try {
                     context.setForceOperation(true); // just force the ops
-                    final File file = putContent(context, node, node.getInputStream());
+                    final HttpContentHandle remote = NodeUtils.getHttpContentHandle(node);
+                    final File file;
+                    if (remote != null && remote.isPrefetched() == false)
+                        file = download(context, node, remote);
+                    else
+                        file = putContent(context, node, node.getInputStream());
                     // we expect the remote nodes to support Ceylon module info                    
                     return new FileArtifactResult(this, context.getName(), context.getVersion(), file);
                 } catch (IOException e) {
@@ -83,6 +98,137 @@ public class RootRepositoryManager extends AbstractNodeRepositoryManager {
         }
     }
 
+    /**
+     * Download the remote content into a .part file next to its final place first.
+     * If the download fails, the next attempt resumes it with a range request.
+     */
+    protected File download(ArtifactContext context, Node node, HttpContentHandle remote) throws IOException {
+        final File target = fileContentStore.getFile(node);
+        final File parent = target.getParentFile();
+        if (parent.exists() == false && parent.mkdirs() == false)
+            throw new IOException("Cannot create dirs: " + parent);
+
+        final File part = new File(target.getPath() + PART);
+        final RandomAccessFile raf = new RandomAccessFile(part, "rw");
+        try {
+            // another process may be downloading it right now
+            FileLock lock;
+            try {
+                lock = raf.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                log.debug("Partial download is locked, not resuming: " + part);
+                return putContent(context, node, node.getInputStream());
+            }
+            try {
+                if (fetchPart(remote, part, raf, true) == false && fetchPart(remote, part, raf, false) == false)
+                    throw new IOException("Cannot download: " + remote);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            IOUtils.safeClose(raf);
+        }
+
+        try {
+            // this checks the SHA1 of the whole thing
+            return putContent(context, node, new FileInputStream(part));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            part.delete();
+            CacheValidators.remove(part);
+        }
+    }
+
+    /**
+     * Fetch the rest of the partial download. Returns false if we should try
+     * again, with what was left of it, in one go.
+     */
+    private boolean fetchPart(HttpContentHandle remote, File part, RandomAccessFile raf, boolean allowSegments) throws IOException {
+        long offset = 0;
+        final Map<String, String> headers = new HashMap<String, String>();
+        if (raf.length() > 0) {
+            final CacheValidators validators = CacheValidators.read(part);
+            final String validator = (validators != null) ? validators.getRangeValidator() : null;
+            if (validator != null) {
+                offset = raf.length();
+                headers.put("Range", "bytes=" + offset + "-");
+                headers.put("If-Range", validator);
+            }
+        }
+        final HttpConnector.Response response = remote.fetch(headers);
+        try {
+            final int code = response.getCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                final long start = getRangeStart(response.getHeader("Content-Range"));
+                if (start < 0 || start > offset)
+                    throw new IOException("Invalid Content-Range for url: " + response.getURL());
+                log.debug("Resuming download of " + response.getURL() + " at " + start);
+                offset = start;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // no range asked, or it was ignored, or the content changed
+                offset = 0;
+                // validators go first, so that we can resume from any point
+                final CacheValidators validators = CacheValidators.fromResponse(response, null);
+                validators.write(part);
+                final long length = response.getContentLength();
+                final int segments = (length > 0) ? remote.getSegments(length) : 1;
+                if (allowSegments && segments > 1 && validators.getRangeValidator() != null
+                        && "bytes".equals(response.getHeader("Accept-Ranges"))) {
+                    raf.setLength(length);
+                    final SegmentedDownload download = new SegmentedDownload(remote, raf.getChannel(), length, segments, validators.getRangeValidator());
+                    try {
+                        download.run(response);
+                        return true;
+                    } catch (IOException e) {
+                        log.debug("Segmented download failed, resuming it in one go: " + e);
+                        raf.setLength(download.getContiguousLength());
+                        return false;
+                    }
+                }
+            } else if (code == REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+                log.debug("Partial download not usable, starting over: " + part);
+                raf.setLength(0);
+                return false;
+            } else {
+                throw new IOException("Got " + code + " for url: " + response.getURL());
+            }
+            raf.setLength(offset);
+            raf.seek(offset);
+            final InputStream in = response.getInputStream();
+            final byte[] bytes = new byte[8192];
+            long total = 0;
+            int cnt;
+            while ((cnt = in.read(bytes)) != -1) {
+                raf.write(bytes, 0, cnt);
+                total += cnt;
+            }
+            // a dropped connection does not always show up as an error
+            final long expected = response.getContentLength();
+            if (expected >= 0 && total != expected)
+                throw new IOException("Premature end of download, got " + total + " of " + expected + " bytes: " + response.getURL());
+            return true;
+        } finally {
+            response.close();
+        }
+    }
+
+    private static long getRangeStart(String contentRange) {
+        // bytes start-end/total
+        if (contentRange == null || contentRange.startsWith("bytes ") == false)
+            return -1;
+        final int dash = contentRange.indexOf('-');
+        if (dash < 0)
+            return -1;
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     protected File putContent(ArtifactContext context, Node node, InputStream stream) throws IOException {
         log.debug("Creating local copy of external node: " + node + " at repo: " + fileContentStore.getDisplayString());
         fileContentStore.putContent(node, stream, context);
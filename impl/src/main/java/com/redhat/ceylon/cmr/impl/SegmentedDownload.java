@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted 
+ * by the author tags.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.redhat.ceylon.cmr.util.DownloadScheduler;
+import com.redhat.ceylon.cmr.util.HttpConnector;
+
+/**
+ * Fetches content as several byte ranges concurrently, each over its own connection,
+ * and writes them in place into a file of the right size.
+ */
+final class SegmentedDownload {
+
+    private final HttpContentHandle remote;
+    private final FileChannel channel;
+    private final long length;
+    private final String validator;
+    private final long segmentSize;
+    private final int segments;
+    private final AtomicLongArray written;
+
+    /**
+     * @param remote    the remote content
+     * @param channel   the file to write into, already as long as the content
+     * @param length    the content length
+     * @param segments  the number of segments
+     * @param validator the validator of the content, for If-Range
+     */
+    SegmentedDownload(HttpContentHandle remote, FileChannel channel, long length, int segments, String validator) {
+        this.remote = remote;
+        this.channel = channel;
+        this.length = length;
+        this.validator = validator;
+        this.segmentSize = (length + segments - 1) / segments;
+        this.segments = (int) ((length + segmentSize - 1) / segmentSize);
+        this.written = new AtomicLongArray(this.segments);
+    }
+
+    /**
+     * Fetch all the segments.
+     *
+     * @param first the response to the plain GET, which gives us the first segment
+     * @throws IOException if any segment failed, see {@link #getContiguousLength()}
+     */
+    void run(HttpConnector.Response first) throws IOException {
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        // the others are bulk work, which must not hold up the interactive requests
+        for (int i = 1; i < segments; i++) {
+            final int segment = i;
+            futures.add(Workers.getExecutor().submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    final DownloadScheduler.Priority previous = DownloadScheduler.setPriority(DownloadScheduler.Priority.BACKGROUND);
+                    try {
+                        fetch(segment);
+                    } finally {
+                        DownloadScheduler.setPriority(previous);
+                    }
+                    return null;
+                }
+            }));
+        }
+        IOException failure = null;
+        try {
+            copy(first.getInputStream(), 0);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            // we only read our segment, this drops the rest
+            first.close();
+        }
+        // wait for all of them, nobody must be writing once we return
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null)
+                    failure = new IOException("Interrupted");
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * How much was written from the start without holes, which can be resumed.
+     *
+     * @return the contiguous length
+     */
+    long getContiguousLength() {
+        for (int i = 0; i < segments; i++) {
+            final long written = this.written.get(i);
+            if (written < getSize(i))
+                return i * segmentSize + written;
+        }
+        return length;
+    }
+
+    private long getSize(int segment) {
+        return Math.min(segmentSize, length - segment * segmentSize);
+    }
+
+    private void fetch(int segment) throws IOException {
+        final long start = segment * segmentSize;
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Range", "bytes=" + start + "-" + (start + getSize(segment) - 1));
+        headers.put("If-Range", validator);
+        final HttpConnector.Response response = remote.fetch(headers);
+        try {
+            final String contentRange = response.getHeader("Content-Range");
+            if (response.getCode() != HttpURLConnection.HTTP_PARTIAL
+                    || contentRange == null || contentRange.startsWith("bytes " + start + "-") == false)
+                throw new IOException("Range request not honoured for url: " + response.getURL() + ", got " + response.getCode());
+            copy(response.getInputStream(), segment);
+        } finally {
+            response.close();
+        }
+    }
+
+    private void copy(InputStream in, int segment) throws IOException {
+        final long start = segment * segmentSize;
+        final long size = getSize(segment);
+        final byte[] bytes = new byte[8192];
+        long done = 0;
+        while (done < size) {
+            final int cnt = in.read(bytes, 0, (int) Math.min(bytes.length, size - done));
+            if (cnt == -1)
+                throw new IOException("Premature end of segment " + segment + " of " + remote);
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, cnt);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, start + done + buffer.position());
+            }
+            done += cnt;
+            written.set(segment, done);
+        }
+    }
+}
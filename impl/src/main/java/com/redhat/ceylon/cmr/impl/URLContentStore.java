@@ -16,17 +16,25 @@
 
 package com.redhat.ceylon.cmr.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.DatatypeConverter;
 
+import com.redhat.ceylon.cmr.api.ArtifactContext;
 import com.redhat.ceylon.cmr.api.Logger;
 import com.redhat.ceylon.cmr.api.ModuleQuery;
 import com.redhat.ceylon.cmr.api.ModuleQuery.Type;
@@ -37,8 +45,12 @@ import com.redhat.ceylon.cmr.api.ModuleVersionResult;
 import com.redhat.ceylon.cmr.spi.ContentHandle;
 import com.redhat.ceylon.cmr.spi.Node;
 import com.redhat.ceylon.cmr.spi.OpenNode;
+import com.redhat.ceylon.cmr.util.DownloadScheduler;
+import com.redhat.ceylon.cmr.util.HttpConnector;
+import com.redhat.ceylon.cmr.util.RemoteHealth;
 import com.redhat.ceylon.cmr.util.WS;
 import com.redhat.ceylon.cmr.util.WS.Link;
+import com.redhat.ceylon.cmr.util.WS.Param;
 import com.redhat.ceylon.cmr.util.WS.Parser;
 import com.redhat.ceylon.cmr.util.WS.XMLHandler;
 
@@ -52,6 +64,16 @@ public abstract class URLContentStore extends AbstractRemoteContentStore {
     public final static String HERD_COMPLETE_MODULES_REL = "http://modules.ceylon-lang.org/rel/complete-modules";
     public final static String HERD_COMPLETE_VERSIONS_REL = "http://modules.ceylon-lang.org/rel/complete-versions";
     public final static String HERD_SEARCH_MODULES_REL = "http://modules.ceylon-lang.org/rel/search-modules";
+    public final static String HERD_CHECK_ARTIFACTS_REL = "http://modules.ceylon-lang.org/rel/check-artifacts";
+
+    public static final long DEFAULT_SEGMENT_THRESHOLD = 8 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final File DEFAULT_HERD_CACHE_DIR = new File(System.getProperty("ceylon.cmr.herd.cacheDir",
+            System.getProperty("user.home") + File.separator + ".ceylon" + File.separator + "herd"));
+    /**
+     * One day.
+     */
+    public static final long DEFAULT_HERD_CACHE_TTL = Long.getLong("ceylon.cmr.herd.cacheTtl", 24 * 60 * 60 * 1000L);
 
     protected final String root;
     protected String username;
@@ -60,6 +82,16 @@ public abstract class URLContentStore extends AbstractRemoteContentStore {
     private String herdCompleteModulesURL;
     private String herdCompleteVersionsURL;
     private String herdSearchModulesURL;
+    private String herdCheckArtifactsURL;
+    private volatile HttpConnector connector;
+    private volatile boolean optimisticFetch;
+    private volatile long segmentThreshold = DEFAULT_SEGMENT_THRESHOLD;
+    private volatile int segments = DEFAULT_SEGMENTS;
+    private final RemoteHealth health = new RemoteHealth();
+    // why the lookup in progress on this thread failed, if it did
+    private final ThreadLocal<String[]> lookupFailure = new ThreadLocal<String[]>();
+    private volatile File herdCacheDir = DEFAULT_HERD_CACHE_DIR;
+    private volatile long herdCacheTtl = DEFAULT_HERD_CACHE_TTL;
 
     protected URLContentStore(String root, Logger log) {
         super(log);
@@ -70,55 +102,107 @@ public abstract class URLContentStore extends AbstractRemoteContentStore {
 
     @Override
     public boolean isHerd(){
+        if(isOffline()){
+            // we don't know, but it cannot serve us anyway
+            if(_isHerd == null)
+                isBlocked("OPTIONS " + root);
+            return false;
+        }
         if(_isHerd == null){
             synchronized(this){
                 if(_isHerd == null){
-                    _isHerd = testHerd();
+                    _isHerd = detectHerd();
                 }
             }
         }
         return _isHerd;
     }
 
-    private boolean testHerd() {
+    private boolean detectHerd() {
+        final File dir = herdCacheDir;
+        HerdInfo info = (dir != null) ? HerdInfo.read(dir, root, herdCacheTtl) : null;
+        if(info != null){
+            log.debug("Using cached Herd detection for "+root+": "+info.version);
+        }else{
+            info = testHerd();
+            if(info == null)
+                return false;
+            if(dir != null)
+                info.write(dir, root);
+        }
+        herdCompleteModulesURL = info.completeModulesURL;
+        herdCompleteVersionsURL = info.completeVersionsURL;
+        herdSearchModulesURL = info.searchModulesURL;
+        herdCheckArtifactsURL = info.checkArtifactsURL;
+        return info.isHerd();
+    }
+
+    /**
+     * Ask the root. Returns null if it did not answer, so we don't remember that.
+     */
+    private HerdInfo testHerd() {
         try{
             URL rootURL = getURL("");
-            HttpURLConnection con = (HttpURLConnection) rootURL.openConnection();
+            HttpConnector.Response response = request("OPTIONS", rootURL, null);
             try{
-                con.setRequestMethod("OPTIONS");
-                if(con.getResponseCode() != HttpURLConnection.HTTP_OK)
-                    return false;
-                String herdVersion = con.getHeaderField("X-Herd-Version");
+                if(response.getCode() != HttpURLConnection.HTTP_OK)
+                    return new HerdInfo(null);
+                String herdVersion = response.getHeader("X-Herd-Version");
                 log.debug("Herd version: "+herdVersion);
-                boolean ret = herdVersion != null && !herdVersion.isEmpty();
-                if(ret){
-                    collectHerdLinks(con);
+                HerdInfo info = new HerdInfo(herdVersion);
+                if(info.isHerd()){
+                    collectHerdLinks(response.getConnection(), info);
                 }
-                return ret;
+                return info;
             }finally{
-                con.disconnect();
+                response.close();
             }
         }catch(Exception x){
             log.debug("Failed to determine if remote host is a Herd repo: "+x.getMessage());
-            return false;
+            return null;
         }
     }
 
-    private void collectHerdLinks(HttpURLConnection con) {
+    private void collectHerdLinks(HttpURLConnection con, HerdInfo info) {
         // collect the links
         try{
             List<Link> links = WS.collectLinks(con);
-            herdCompleteModulesURL = WS.getLink(links, HERD_COMPLETE_MODULES_REL);
-            herdCompleteVersionsURL = WS.getLink(links, HERD_COMPLETE_VERSIONS_REL);
-            herdSearchModulesURL = WS.getLink(links, HERD_SEARCH_MODULES_REL);
-            log.debug("Got complete-modules link: " + herdCompleteModulesURL);
-            log.debug("Got complete-versions link: " + herdCompleteVersionsURL);
-            log.debug("Got search-modules link: " + herdSearchModulesURL);
+            info.completeModulesURL = WS.getLink(links, HERD_COMPLETE_MODULES_REL);
+            info.completeVersionsURL = WS.getLink(links, HERD_COMPLETE_VERSIONS_REL);
+            info.searchModulesURL = WS.getLink(links, HERD_SEARCH_MODULES_REL);
+            info.checkArtifactsURL = WS.getLink(links, HERD_CHECK_ARTIFACTS_REL);
+            log.debug("Got complete-modules link: " + info.completeModulesURL);
+            log.debug("Got complete-versions link: " + info.completeVersionsURL);
+            log.debug("Got search-modules link: " + info.searchModulesURL);
+            log.debug("Got check-artifacts link: " + info.checkArtifactsURL);
         }catch(Exception x){
             log.debug("Failed to read links from Herd repo: "+x.getMessage());
         }
     }
 
+    public File getHerdCacheDir() {
+        return herdCacheDir;
+    }
+
+    /**
+     * Sets where we remember which roots are Herd repos, and their web service links.
+     * Set it to null to ask every time.
+     */
+    public void setHerdCacheDir(File herdCacheDir) {
+        this.herdCacheDir = herdCacheDir;
+    }
+
+    public long getHerdCacheTtl() {
+        return herdCacheTtl;
+    }
+
+    /**
+     * Sets how long we trust what we remember about a root, in ms.
+     */
+    public void setHerdCacheTtl(long herdCacheTtl) {
+        this.herdCacheTtl = herdCacheTtl;
+    }
+
     
     public void setUsername(String username) {
         this.username = username;
@@ -128,24 +212,161 @@ public abstract class URLContentStore extends AbstractRemoteContentStore {
         this.password = password;
     }
 
+    public HttpConnector getConnector() {
+        HttpConnector c = connector;
+        return (c != null) ? c : HttpConnector.getInstance();
+    }
+
+    /**
+     * Use a dedicated connector instead of the shared one.
+     */
+    public void setConnector(HttpConnector connector) {
+        this.connector = connector;
+    }
+
+    public boolean isOptimisticFetch() {
+        return optimisticFetch;
+    }
+
+    /**
+     * In optimistic fetch mode we look for content with a single GET instead
+     * of a HEAD followed by a GET, see {@link #fetchContentHandle}.
+     */
+    public void setOptimisticFetch(boolean optimisticFetch) {
+        this.optimisticFetch = optimisticFetch;
+    }
+
+    public long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * Content at least this long is downloaded in several concurrent segments.
+     * Set it to -1 to always download it in one go.
+     */
+    public void setSegmentThreshold(long segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Sets the number of concurrent segments for large content.
+     */
+    public void setSegments(int segments) {
+        if (segments < 1)
+            throw new IllegalArgumentException("Invalid number of segments: " + segments);
+        this.segments = segments;
+    }
+
+    /**
+     * The health of this remote repository. Once it has failed a few times in a row,
+     * we skip it for a while, and lookups miss right away instead of timing out.
+     */
+    public RemoteHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * Should we send a request now? Call {@link #succeeded} or {@link #failed} once it is done.
+     */
+    protected boolean isAvailable() {
+        if (health.allowRequest())
+            return true;
+        noteFailure("unavailable");
+        return false;
+    }
+
+    /**
+     * Records a request which got a response.
+     *
+     * @param start when it was sent, as {@link System#nanoTime()}, or -1 if its latency is of no interest
+     */
+    protected void succeeded(long start) {
+        health.success(start >= 0 ? System.nanoTime() - start : -1);
+    }
+
+    /**
+     * Records a request which got no response, or a server error.
+     */
+    protected void failed(String reason) {
+        noteFailure(reason);
+        if (health.failure())
+            log.warning("Remote repository " + root + " is unavailable (" + reason + "), skipping it for " + health.getCoolDown() + "ms");
+    }
+
+    /**
+     * The first segment comes from the plain GET, the others are fetched in the background.
+     * Never more of them than background requests to the host, so that a download leaves
+     * room for the interactive requests.
+     */
+    protected int getSegments(long length) {
+        if (segmentThreshold < 0 || length < segmentThreshold)
+            return 1;
+        return Math.min(segments, DownloadScheduler.getMaxBackground(getConnector().getMaxConnectionsPerHost()));
+    }
+
+    private void noteFailure(String reason) {
+        final String[] failure = lookupFailure.get();
+        if (failure != null)
+            failure[0] = reason;
+    }
+
+    /**
+     * Same as {@link #find(Node, String)}, but tells a miss from a failure to get an answer.
+     *
+     * @return the node, or null if the repository answered that there is none
+     * @throws IOException if we did not get an answer
+     */
+    public OpenNode lookup(Node parent, String child) throws IOException {
+        final String[] failure = new String[1];
+        lookupFailure.set(failure);
+        try {
+            final OpenNode node = find(parent, child);
+            if (node == null && failure[0] != null)
+                throw new IOException("Failed to look up " + child + " in " + root + ": " + failure[0]);
+            return node;
+        } finally {
+            lookupFailure.remove();
+        }
+    }
+
     public OpenNode find(Node parent, String child) {
         final String path = getFullPath(parent, child);
         // only test the URL if we are looking at the child level
         // otherwise, pretend that folders exist, we'll find out soon
         // enough
-        if (hasContent(child) && !urlExists(path)) {
+        final boolean hasContent = hasContent(child);
+        if (hasContent && !isOptimisticFetch() && !urlExists(path)) {
             return null;
         }
         final RemoteNode node = createNode(child);
         ContentHandle handle;
-        if (hasContent(child))
-            handle = createContentHandle(parent, child, path, node);
-        else
+        if (hasContent) {
+            if (isOptimisticFetch()) {
+                handle = fetchContentHandle(parent, child, path, node);
+                if (handle == null)
+                    return null;
+            } else {
+                handle = createContentHandle(parent, child, path, node);
+            }
+        } else {
             handle = DefaultNode.HANDLE_MARKER;
+        }
         node.setHandle(handle);
         return node;
     }
 
+    /**
+     * Fetches the content in one go, the response answering whether it exists.
+     * Returns null if it does not. By default we only test for its existence.
+     */
+    protected ContentHandle fetchContentHandle(Node parent, String child, String path, Node node) {
+        return urlExists(path) ? createContentHandle(parent, child, path, node) : null;
+    }
+
     protected abstract ContentHandle createContentHandle(Node parent, String child, String path, Node node);
 
     protected String getUrlAsString(Node node) {
@@ -190,39 +411,250 @@ public abstract class URLContentStore extends AbstractRemoteContentStore {
     }
 
     protected HttpURLConnection head(final URL url) throws IOException {
-        final URLConnection conn = url.openConnection();
-        if (conn instanceof HttpURLConnection) {
-            HttpURLConnection huc = (HttpURLConnection) conn;
-            huc.setRequestMethod("HEAD");
-            addCredentials(huc);
-            int code = huc.getResponseCode();
-            huc.disconnect();
-            log.debug("Got " + code + " for url: " + url);
-            if (code == 200) {
-                return huc;
-            }
+        final HttpConnector.Response response = request("HEAD", url, createHeaders());
+        response.close();
+        final int code = response.getCode();
+        log.debug("Got " + code + " for url: " + url);
+        if (code == 200) {
+            // headers remain readable
+            return response.getConnection();
         }
         return null;
     }
 
-    protected void addCredentials(HttpURLConnection conn) throws IOException {
+    /**
+     * All the HTTP requests of this store go through here.
+     */
+    protected HttpConnector.Response request(String method, URL url, Map<String, String> headers) throws IOException {
+        checkOnline(method + " " + url);
+        if (isAvailable() == false)
+            throw new IOException("Remote repository " + root + " is unavailable, skipping " + url);
+        final long start = System.nanoTime();
+        final HttpConnector.Response response;
+        try {
+            response = getConnector().request(method, url, headers);
+        } catch (DownloadScheduler.QueueTimeoutException e) {
+            // no answer, but not the host's fault
+            noteFailure(e.toString());
+            throw e;
+        } catch (IOException e) {
+            failed(e.toString());
+            throw e;
+        } catch (RuntimeException e) {
+            failed(e.toString());
+            throw e;
+        } catch (Error e) {
+            failed(e.toString());
+            throw e;
+        }
+        if (response.getCode() >= 500)
+            failed("got " + response.getCode() + " for " + url);
+        else
+            succeeded(start);
+        return response;
+    }
+
+    /**
+     * GET the url with our credentials and the given extra headers.
+     */
+    protected HttpConnector.Response fetch(URL url, Map<String, String> headers) throws IOException {
+        final Map<String, String> allHeaders = createHeaders();
+        if (headers != null)
+            allHeaders.putAll(headers);
+        return request("GET", url, allHeaders);
+    }
+
+    /**
+     * All the Herd web service calls of this store go through here.
+     */
+    protected void getXML(String url, Param[] params, XMLHandler handler) {
+        xml(false, url, params, handler);
+    }
+
+    /**
+     * Same as {@link #getXML}, with the params POSTed as a form.
+     */
+    protected void postXML(String url, Param[] params, XMLHandler handler) {
+        xml(true, url, params, handler);
+    }
+
+    private void xml(boolean post, String url, Param[] params, XMLHandler handler) {
+        if (isBlocked((post ? "POST " : "GET ") + url))
+            throw new RuntimeException("Offline, not accessing: " + url);
+        if (isAvailable() == false)
+            throw new RuntimeException("Remote repository " + root + " is unavailable, skipping " + url);
+        try {
+            if (post)
+                WS.postXML(getConnector(), url, params, handler);
+            else
+                WS.getXML(getConnector(), url, params, handler);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof DownloadScheduler.QueueTimeoutException) {
+                noteFailure(e.getCause().toString());
+            } else if (e.getCause() instanceof IOException) {
+                failed(e.getCause().toString());
+            } else {
+                // the server answered, we just did not like it
+                succeeded(-1);
+            }
+            throw e;
+        } catch (Error e) {
+            failed(e.toString());
+            throw e;
+        }
+        // includes parsing, so no latency sample
+        succeeded(-1);
+    }
+
+    protected Map<String, String> createHeaders() throws IOException {
+        final Map<String, String> headers = new HashMap<String, String>();
+        addCredentials(headers);
+        return headers;
+    }
+
+    protected void addCredentials(Map<String, String> headers) throws IOException {
         if (username != null && password != null) {
             try {
                 String authString = DatatypeConverter.printBase64Binary((username + ":" + password).getBytes());
-                conn.setRequestProperty("Authorization", "Basic " + authString);
-                conn.connect();
+                headers.put("Authorization", "Basic " + authString);
             } catch (Exception e) {
                 throw new IOException("Cannot set basic authorization.", e);
             }
         }
     }
 
+    /**
+     * Can {@link #exist(List)} ask about all the artifacts in a single request?
+     */
+    public boolean canCheckArtifactsAtOnce() {
+        return isHerd() && herdCheckArtifactsURL != null;
+    }
+
+    /**
+     * Which of these artifacts exist? If this is a Herd repo offering it, we ask for
+     * all of them at once, otherwise we check them concurrently.
+     *
+     * @param artifacts the artifacts, by name, version and suffix
+     * @return whether each of them exists, in the same order, or null where we got no answer
+     */
+    public Map<ArtifactContext, Boolean> exist(List<ArtifactContext> artifacts) {
+        if (canCheckArtifactsAtOnce() == false)
+            return checkArtifacts(artifacts);
+        final DownloadScheduler.Priority previous = DownloadScheduler.setPriority(DownloadScheduler.Priority.BACKGROUND);
+        try {
+            return checkArtifactsOnHerd(artifacts);
+        } catch (Exception x) {
+            log.info("Failed to check artifacts on Herd: " + x.getMessage());
+            // no answer, rather than a request per artifact
+            final Map<ArtifactContext, Boolean> ret = new LinkedHashMap<ArtifactContext, Boolean>();
+            for (ArtifactContext artifact : artifacts)
+                ret.put(artifact, null);
+            return ret;
+        } finally {
+            DownloadScheduler.setPriority(previous);
+        }
+    }
+
+    private static String getArtifactPath(ArtifactContext artifact) {
+        return SEPARATOR + AbstractRepository.getDefaultArtifactPath(artifact, SEPARATOR);
+    }
+
+    /**
+     * POSTs module, version and suffix params for each artifact, and expects
+     * &lt;artifacts>&lt;artifact module="" version="" suffix="" exists="true|false"/>...&lt;/artifacts>.
+     */
+    private Map<ArtifactContext, Boolean> checkArtifactsOnHerd(List<ArtifactContext> artifacts) {
+        final Param[] params = new Param[artifacts.size() * 3];
+        int i = 0;
+        for (ArtifactContext artifact : artifacts) {
+            params[i++] = WS.param("module", artifact.getName());
+            params[i++] = WS.param("version", artifact.getVersion());
+            params[i++] = WS.param("suffix", artifact.getSuffix());
+        }
+        final Map<String, Boolean> found = new HashMap<String, Boolean>();
+        postXML(herdCheckArtifactsURL, params, new XMLHandler() {
+            @Override
+            public void onOK(Parser p) {
+                p.moveToOpenTag("artifacts");
+                while (p.moveToOptionalOpenTag("artifact")) {
+                    final String key = getArtifactKey(p.getAttribute("module"), p.getAttribute("version"), p.getAttribute("suffix"));
+                    found.put(key, Boolean.valueOf(p.getAttribute("exists")));
+                    // skip to its end
+                    p.nextTag();
+                    p.checkCloseTag();
+                }
+            }
+        });
+        final Map<ArtifactContext, Boolean> ret = new LinkedHashMap<ArtifactContext, Boolean>();
+        for (ArtifactContext artifact : artifacts) {
+            final Boolean exists = found.get(getArtifactKey(artifact.getName(), artifact.getVersion(), artifact.getSuffix()));
+            if (exists == null)
+                throw new RuntimeException("No answer for " + artifact);
+            ret.put(artifact, exists);
+        }
+        return ret;
+    }
+
+    private static String getArtifactKey(String module, String version, String suffix) {
+        return module + "/" + version + "/" + suffix;
+    }
+
+    /**
+     * One existence check per artifact, in the background, with as many at once as the
+     * connector allows per host for background requests.
+     */
+    private Map<ArtifactContext, Boolean> checkArtifacts(final List<ArtifactContext> artifacts) {
+        final Boolean[] exists = new Boolean[artifacts.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final Callable<Void> worker = new Callable<Void>() {
+            public Void call() throws Exception {
+                final DownloadScheduler.Priority previous = DownloadScheduler.setPriority(DownloadScheduler.Priority.BACKGROUND);
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < exists.length) {
+                        final String[] failure = new String[1];
+                        lookupFailure.set(failure);
+                        if (urlExists(getArtifactPath(artifacts.get(i))))
+                            exists[i] = Boolean.TRUE;
+                        else if (failure[0] == null)
+                            exists[i] = Boolean.FALSE;
+                    }
+                } finally {
+                    lookupFailure.remove();
+                    DownloadScheduler.setPriority(previous);
+                }
+                return null;
+            }
+        };
+        final int workers = Math.min(artifacts.size(), DownloadScheduler.getMaxBackground(getConnector().getMaxConnectionsPerHost()));
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 1; i < workers; i++) {
+            futures.add(Workers.getExecutor().submit(worker));
+        }
+        try {
+            // we are a worker too
+            worker.call();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.debug("Failed to check artifacts: " + e);
+        }
+        final Map<ArtifactContext, Boolean> ret = new LinkedHashMap<ArtifactContext, Boolean>();
+        for (int i = 0; i < exists.length; i++) {
+            ret.put(artifacts.get(i), exists[i]);
+        }
+        return ret;
+    }
+
     @Override
     public void completeModules(final ModuleQuery query, final ModuleSearchResult result) {
         if(isHerd() && herdCompleteModulesURL != null){
             // let's try Herd
             try{
-                WS.getXML(herdCompleteModulesURL,
+                getXML(herdCompleteModulesURL,
                           WS.params(WS.param("module", query.getName()),
                                     WS.param("type", getHerdTypeParam(query.getType())),
                                     WS.param("binaryMajor", query.getBinaryMajor()),
@@ -257,7 +689,7 @@ public abstract class URLContentStore extends AbstractRemoteContentStore {
         if(isHerd() && herdCompleteVersionsURL != null){
             // let's try Herd
             try{
-                WS.getXML(herdCompleteVersionsURL,
+                getXML(herdCompleteVersionsURL,
                           WS.params(WS.param("module", lookup.getName()),
                                     WS.param("version", lookup.getVersion()),
                                     WS.param("type", getHerdTypeParam(lookup.getType())),
@@ -320,7 +752,7 @@ public abstract class URLContentStore extends AbstractRemoteContentStore {
         if(isHerd() && herdSearchModulesURL != null){
             // let's try Herd
             try{
-                WS.getXML(herdSearchModulesURL,
+                getXML(herdSearchModulesURL,
                           WS.params(WS.param("query", query.getName()),
                                     WS.param("type", getHerdTypeParam(query.getType())),
                                     WS.param("start", query.getStart()),
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted 
+ * by the author tags.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by all our concurrent work: module searches, existence checks,
+ * download segments and mirror lookups. There are at most ceylon.cmr.threads of them,
+ * by default four per processor and at least eight, since they mostly wait on the network.
+ * When they are all busy, the work runs on the thread handing it over, so it never queues
+ * up behind the work it may be waiting for.
+ */
+final class Workers {
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("ceylon.cmr.threads",
+            Math.max(8, 4 * Runtime.getRuntime().availableProcessors()));
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, DEFAULT_THREADS,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "Ceylon worker " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private Workers() {
+    }
+
+    static ExecutorService getExecutor() {
+        return executor;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the remote requests of an {@link HttpConnector}: caps the number of
+ * concurrent requests per host, serves interactive requests before background ones,
+ * and optionally limits the bandwidth used per host. Background requests never take
+ * the last connection to a host, so that an interactive request does not wait for them.
+ * <p/>
+ * The priority of a request is the one of the thread making it, see {@link #setPriority}.
+ */
+public class DownloadScheduler {
+
+    public enum Priority {
+        /**
+         * Someone is waiting for it, the default.
+         */
+        INTERACTIVE,
+        /**
+         * Bulk work, such as existence checks or download segments: only served when no
+         * interactive request is waiting, and a connection is left for those.
+         */
+        BACKGROUND
+    }
+
+    private static final ThreadLocal<Priority> priority = new ThreadLocal<Priority>();
+
+    private volatile int maxConnectionsPerHost;
+    private volatile long bandwidthLimit = -1;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    public DownloadScheduler(int maxConnectionsPerHost) {
+        setMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    /**
+     * The priority of the requests made by the current thread.
+     */
+    public static Priority getPriority() {
+        final Priority p = priority.get();
+        return (p != null) ? p : Priority.INTERACTIVE;
+    }
+
+    /**
+     * Sets the priority of the requests made by the current thread.
+     *
+     * @param p the new priority
+     * @return the previous priority, to be restored when done
+     */
+    public static Priority setPriority(Priority p) {
+        final Priority previous = getPriority();
+        priority.set(p);
+        return previous;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * How many background requests may run at once to a host with that limit.
+     *
+     * @param maxConnections the limit of the host
+     * @return all but one, or one
+     */
+    public static int getMaxBackground(int maxConnections) {
+        return Math.max(1, maxConnections - 1);
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests for hosts without a limit of their own.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1)
+            throw new IllegalArgumentException("Invalid max connections per host: " + maxConnectionsPerHost);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        for (Host host : hosts.values()) {
+            host.wakeUp();
+        }
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests for one host.
+     *
+     * @param host           the host, as host:port
+     * @param maxConnections the limit, or -1 for the default one
+     */
+    public void setMaxConnections(String host, int maxConnections) {
+        final Host h = getHost(host);
+        h.maxConnections = maxConnections;
+        h.wakeUp();
+    }
+
+    public long getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    /**
+     * Sets the bandwidth limit for hosts without a limit of their own.
+     *
+     * @param bytesPerSecond the limit, or -1 for none
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        this.bandwidthLimit = bytesPerSecond;
+    }
+
+    /**
+     * Sets the bandwidth limit for one host, shared by all its requests.
+     *
+     * @param host           the host, as host:port
+     * @param bytesPerSecond the limit, 0 for none, or -1 for the default one
+     */
+    public void setBandwidthLimit(String host, long bytesPerSecond) {
+        getHost(host).bandwidthLimit = bytesPerSecond;
+    }
+
+    /**
+     * Wait for our turn to make a request to the url's host.
+     *
+     * @param url     the url
+     * @param timeout how long to wait, in ms
+     * @return the permit, to release once the response is closed
+     * @throws IOException if we were interrupted, or a {@link QueueTimeoutException} if we timed out
+     */
+    public Permit acquire(URL url, long timeout) throws IOException {
+        final Host host = getHost(getHostKey(url));
+        host.acquire(getPriority(), timeout);
+        return new Permit(host);
+    }
+
+    /**
+     * The number of requests waiting for their turn, over all hosts.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Host host : hosts.values()) {
+            depth += host.getStats().getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * The stats of all the hosts we made requests to.
+     *
+     * @return the stats, by host:port
+     */
+    public Map<String, HostStats> getStats() {
+        final Map<String, HostStats> stats = new TreeMap<String, HostStats>();
+        for (Host host : hosts.values()) {
+            stats.put(host.name, host.getStats());
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    static String getHostKey(URL url) {
+        return url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    private Host getHost(String name) {
+        Host host = hosts.get(name);
+        if (host == null) {
+            final Host newHost = new Host(name);
+            host = hosts.putIfAbsent(name, newHost);
+            if (host == null)
+                host = newHost;
+        }
+        return host;
+    }
+
+    /**
+     * We gave up waiting for our turn. The host did not fail us, our other requests to it
+     * just did not finish in time.
+     */
+    public static class QueueTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public QueueTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The right to make one request, until released.
+     */
+    public static class Permit {
+        private final Host host;
+        private boolean released;
+
+        private Permit(Host host) {
+            this.host = host;
+        }
+
+        /**
+         * Applies the host's bandwidth limit to a response body.
+         */
+        public InputStream throttle(InputStream stream) {
+            return new FilterInputStream(stream) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b != -1)
+                        host.consume(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int cnt = super.read(b, off, len);
+                    if (cnt > 0)
+                        host.consume(cnt);
+                    return cnt;
+                }
+            };
+        }
+
+        public synchronized void release() {
+            if (released == false) {
+                released = true;
+                host.release();
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the activity of a host.
+     */
+    public static class HostStats {
+        private final String host;
+        private final int active;
+        private final int queuedInteractive;
+        private final int queuedBackground;
+        private final long requests;
+        private final long waitedMillis;
+        private final long bytes;
+
+        HostStats(String host, int active, int queuedInteractive, int queuedBackground, long requests, long waitedMillis, long bytes) {
+            this.host = host;
+            this.active = active;
+            this.queuedInteractive = queuedInteractive;
+            this.queuedBackground = queuedBackground;
+            this.requests = requests;
+            this.waitedMillis = waitedMillis;
+            this.bytes = bytes;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Requests in progress.
+         */
+        public int getActive() {
+            return active;
+        }
+
+        public int getQueuedInteractive() {
+            return queuedInteractive;
+        }
+
+        public int getQueuedBackground() {
+            return queuedBackground;
+        }
+
+        /**
+         * Requests waiting for their turn.
+         */
+        public int getQueueDepth() {
+            return queuedInteractive + queuedBackground;
+        }
+
+        /**
+         * Requests started so far.
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Total time requests spent waiting for their turn.
+         */
+        public long getWaitedMillis() {
+            return waitedMillis;
+        }
+
+        /**
+         * Response bytes read so far.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return host + ": " + active + " active, " + queuedInteractive + " interactive and "
+                    + queuedBackground + " background waiting, " + requests + " requests, "
+                    + waitedMillis + "ms waited, " + bytes + " bytes";
+        }
+    }
+
+    private class Host {
+        private final String name;
+        private final LinkedList<Object> interactive = new LinkedList<Object>();
+        private final LinkedList<Object> background = new LinkedList<Object>();
+        private volatile int maxConnections = -1;
+        private volatile long bandwidthLimit = -1;
+        private int active;
+        private long requests;
+        private long waitedNanos;
+        // bandwidth, guarded by the bucket
+        private final Object bucket = new Object();
+        private long bytes;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private Host(String name) {
+            this.name = name;
+        }
+
+        private int getMaxConnections() {
+            final int max = maxConnections;
+            return (max > 0) ? max : maxConnectionsPerHost;
+        }
+
+        private int getLimit(Priority p) {
+            final int max = getMaxConnections();
+            return (p == Priority.INTERACTIVE) ? max : getMaxBackground(max);
+        }
+
+        private long getBandwidthLimit() {
+            final long limit = bandwidthLimit;
+            return (limit >= 0) ? limit : DownloadScheduler.this.bandwidthLimit;
+        }
+
+        private synchronized void acquire(Priority p, long timeout) throws IOException {
+            final Object ticket = new Object();
+            final LinkedList<Object> queue = (p == Priority.INTERACTIVE) ? interactive : background;
+            queue.add(ticket);
+            final long start = System.nanoTime();
+            final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+            boolean acquired = false;
+            try {
+                while (active >= getLimit(p) || isNext(p, ticket) == false) {
+                    final long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        throw new QueueTimeoutException("Timed out waiting for a connection to " + name);
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+                active++;
+                requests++;
+                waitedNanos += System.nanoTime() - start;
+                acquired = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection to " + name);
+            } finally {
+                queue.remove(ticket);
+                if (acquired == false) {
+                    // we may have been the one the others were waiting for
+                    notifyAll();
+                }
+            }
+        }
+
+        private boolean isNext(Priority p, Object ticket) {
+            if (p == Priority.INTERACTIVE)
+                return interactive.getFirst() == ticket;
+            return interactive.isEmpty() && background.getFirst() == ticket;
+        }
+
+        private synchronized void release() {
+            active--;
+            notifyAll();
+        }
+
+        private synchronized void wakeUp() {
+            notifyAll();
+        }
+
+        private void consume(int cnt) throws IOException {
+            final long limit = getBandwidthLimit();
+            long sleepNanos = 0;
+            synchronized (bucket) {
+                bytes += cnt;
+                if (limit <= 0)
+                    return;
+                final long now = System.nanoTime();
+                // allow bursts of up to one second worth of data
+                tokens = Math.min(limit, tokens + (now - lastRefill) * limit / 1e9);
+                lastRefill = now;
+                tokens -= cnt;
+                if (tokens < 0)
+                    sleepNanos = (long) (-tokens * 1e9 / limit);
+            }
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttling download from " + name);
+                }
+            }
+        }
+
+        private HostStats getStats() {
+            final long read;
+            synchronized (bucket) {
+                read = bytes;
+            }
+            synchronized (this) {
+                return new HostStats(name, active, interactive.size(), background.size(),
+                        requests, TimeUnit.NANOSECONDS.toMillis(waitedNanos), read);
+            }
+        }
+    }
+}
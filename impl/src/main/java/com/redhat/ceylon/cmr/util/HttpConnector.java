@@ -0,0 +1,294 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shared HTTP connection layer used by the remote content stores and the Herd client.
+ * <p/>
+ * Connections are pooled by the JDK keep-alive cache, which only takes a connection
+ * back once its response body has been read and closed. So every {@link Response}
+ * must be closed, and connections are never disconnected explicitly. On top of that
+ * we apply connect/read timeouts, and every request waits for its turn from the
+ * {@link DownloadScheduler}.
+ * <p/>
+ * The number of idle connections kept per host is governed by the standard
+ * <code>http.maxConnections</code> system property.
+ */
+public class HttpConnector {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = Integer.getInteger("ceylon.cmr.http.connectTimeout", 20 * 1000);
+    public static final int DEFAULT_READ_TIMEOUT = Integer.getInteger("ceylon.cmr.http.readTimeout", 60 * 1000);
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = Integer.getInteger("ceylon.cmr.http.maxConnectionsPerHost", 5);
+
+    private static volatile HttpConnector instance = new HttpConnector();
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private final DownloadScheduler scheduler = new DownloadScheduler(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+
+    /**
+     * The connector shared by all remote stores which were not given their own.
+     */
+    public static HttpConnector getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(HttpConnector connector) {
+        if (connector == null)
+            throw new IllegalArgumentException("Null connector");
+        instance = connector;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the connect timeout, in milliseconds. This is also how long we wait
+     * for a free connection slot for a host.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the read timeout, in milliseconds.
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * The scheduler for our requests, for setting limits and reading stats.
+     */
+    public DownloadScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return scheduler.getMaxConnectionsPerHost();
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests per host.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        scheduler.setMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    public Response head(URL url, Map<String, String> headers) throws IOException {
+        return request("HEAD", url, headers);
+    }
+
+    public Response get(URL url, Map<String, String> headers) throws IOException {
+        return request("GET", url, headers);
+    }
+
+    public Response options(URL url, Map<String, String> headers) throws IOException {
+        return request("OPTIONS", url, headers);
+    }
+
+    public Response post(URL url, Map<String, String> headers, byte[] body) throws IOException {
+        return request("POST", url, headers, body);
+    }
+
+    /**
+     * Sends the request and waits for the response status and headers.
+     * The returned response holds a connection until it is closed.
+     */
+    public Response request(String method, URL url, Map<String, String> headers) throws IOException {
+        return request(method, url, headers, null);
+    }
+
+    /**
+     * Same as {@link #request(String, URL, Map)}, with a request body.
+     */
+    public Response request(String method, URL url, Map<String, String> headers, byte[] body) throws IOException {
+        final URLConnection conn = url.openConnection();
+        if (conn instanceof HttpURLConnection == false)
+            throw new IOException("Not an HTTP url: " + url);
+        final HttpURLConnection con = (HttpURLConnection) conn;
+        con.setRequestMethod(method);
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                con.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        if (body != null) {
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(body.length);
+        }
+        final DownloadScheduler.Permit permit = scheduler.acquire(url, connectTimeout);
+        try {
+            if (body != null) {
+                final OutputStream os = con.getOutputStream();
+                try {
+                    os.write(body);
+                } finally {
+                    os.close();
+                }
+            }
+            return new Response(url, con, con.getResponseCode(), scheduler, connectTimeout, permit);
+        } catch (IOException e) {
+            permit.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    /**
+     * HTTP response. Closing it, or its body stream, hands the connection back.
+     */
+    public static class Response implements Closeable {
+        private final URL url;
+        private final HttpURLConnection connection;
+        private final int code;
+        private final DownloadScheduler scheduler;
+        private final int timeout;
+        // null while parked
+        private DownloadScheduler.Permit permit;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private InputStream body;
+        private InputStream stream;
+
+        private Response(URL url, HttpURLConnection connection, int code, DownloadScheduler scheduler, int timeout, DownloadScheduler.Permit permit) {
+            this.url = url;
+            this.connection = connection;
+            this.code = code;
+            this.scheduler = scheduler;
+            this.timeout = timeout;
+            this.permit = permit;
+        }
+
+        /**
+         * Gives our turn back to the scheduler until the body is read, which then waits for
+         * a turn again. For responses which may never be read, so that they do not hold up
+         * the other requests to the host.
+         */
+        public synchronized void park() {
+            if (permit != null) {
+                permit.release();
+                permit = null;
+            }
+        }
+
+        public URL getURL() {
+            return url;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public boolean isOK() {
+            return code == HttpURLConnection.HTTP_OK;
+        }
+
+        /**
+         * The underlying connection, for reading headers only.
+         */
+        public HttpURLConnection getConnection() {
+            return connection;
+        }
+
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        public long getLastModified() {
+            return connection.getLastModified();
+        }
+
+        public long getContentLength() {
+            final String length = connection.getHeaderField("Content-Length");
+            if (length == null)
+                return -1;
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * The response body. Closing it closes this response.
+         */
+        public synchronized InputStream getInputStream() throws IOException {
+            if (stream == null) {
+                if (permit == null) {
+                    if (closed.get())
+                        throw new IOException("Response already closed: " + url);
+                    permit = scheduler.acquire(url, timeout);
+                }
+                stream = new FilterInputStream(permit.throttle(openBody())) {
+                    @Override
+                    public void close() throws IOException {
+                        Response.this.close();
+                    }
+                };
+            }
+            return stream;
+        }
+
+        private synchronized InputStream openBody() throws IOException {
+            if (body == null) {
+                InputStream is = (code >= 400) ? connection.getErrorStream() : connection.getInputStream();
+                body = (is != null) ? is : new ByteArrayInputStream(new byte[0]);
+            }
+            return body;
+        }
+
+        public void close() {
+            if (closed.compareAndSet(false, true) == false)
+                return;
+            try {
+                // closing the body (rather than disconnecting) returns the connection to the keep-alive cache
+                openBody().close();
+            } catch (IOException ignored) {
+                // the connection is dropped
+            } finally {
+                release();
+            }
+        }
+
+        private synchronized void release() {
+            if (permit != null)
+                permit.release();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.cmr.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the failures and latency of a remote repository, and acts as a circuit breaker.
+ * <p/>
+ * After a number of consecutive failures the circuit opens, and requests are refused
+ * right away for a cool-down period. Once it is over a single request is let through
+ * as a probe: its success closes the circuit, its failure opens it again. Should the
+ * probe not report back within another cool-down period, the next request is let
+ * through as a new probe.
+ */
+public class RemoteHealth {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = Integer.getInteger("ceylon.cmr.remote.failureThreshold", 3);
+    public static final int DEFAULT_COOL_DOWN = Integer.getInteger("ceylon.cmr.remote.coolDown", 30 * 1000);
+
+    private static final int SAMPLES = 64;
+    private static final double EWMA_WEIGHT = 0.2;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long coolDown = DEFAULT_COOL_DOWN;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long retryAt;
+    private long failures;
+    private long successes;
+    private long skipped;
+    // latency, in nanoseconds
+    private double averageLatency = -1;
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount;
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failures which opens the circuit.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1)
+            throw new IllegalArgumentException("Invalid failure threshold: " + failureThreshold);
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getCoolDown() {
+        return coolDown;
+    }
+
+    /**
+     * Sets how long, in milliseconds, the circuit stays open before we probe again.
+     */
+    public void setCoolDown(long coolDown) {
+        this.coolDown = coolDown;
+    }
+
+    /**
+     * Should we send a request? If not, it should fail right away.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED)
+            return true;
+        final long now = System.currentTimeMillis();
+        if (now >= retryAt) {
+            // we are the probe, or the last one got lost
+            state = State.HALF_OPEN;
+            retryAt = now + coolDown;
+            return true;
+        }
+        skipped++;
+        return false;
+    }
+
+    /**
+     * Records a request which got a response.
+     *
+     * @param latency the time it took to get it, in nanoseconds, or -1 if not measured
+     */
+    public synchronized void success(long latency) {
+        successes++;
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+        if (latency >= 0) {
+            averageLatency = (averageLatency < 0) ? latency : EWMA_WEIGHT * latency + (1 - EWMA_WEIGHT) * averageLatency;
+            samples[sampleCount++ % SAMPLES] = latency;
+        }
+    }
+
+    /**
+     * Records a request which got no response, or a server error.
+     *
+     * @return true if this opened the circuit
+     */
+    public synchronized boolean failure() {
+        failures++;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            retryAt = System.currentTimeMillis() + coolDown;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Is the circuit closed, or about to be probed?
+     */
+    public synchronized boolean isAvailable() {
+        return state == State.CLOSED || System.currentTimeMillis() >= retryAt;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getSuccesses() {
+        return successes;
+    }
+
+    /**
+     * The number of requests refused while the circuit was open.
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * The moving average of the latency, in milliseconds, or -1 if unknown.
+     */
+    public synchronized double getAverageLatency() {
+        return (averageLatency < 0) ? -1 : averageLatency / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * A percentile of the latency over the recent requests, in milliseconds, or -1 if unknown.
+     *
+     * @param percentile the percentile, between 0 and 1
+     */
+    public synchronized double getLatencyPercentile(double percentile) {
+        final int count = Math.min(sampleCount, SAMPLES);
+        if (count == 0)
+            return -1;
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        final int index = Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+        return (double) sorted[Math.max(0, index)] / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state + ", " + consecutiveFailures + " consecutive failures, " + skipped + " skipped, "
+                + String.format("%.1f", getAverageLatency()) + "ms average latency";
+    }
+}
@@ -1,5 +1,6 @@
 package com.redhat.ceylon.cmr.util;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -9,7 +10,11 @@ import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -97,18 +102,48 @@ public class WS {
     }
     
     public static void getXML(String url, Param[] params, XMLHandler handler){
+        getXML(HttpConnector.getInstance(), url, params, handler);
+    }
+
+    public static void getXML(HttpConnector connector, String url, Param[] params, XMLHandler handler){
+        if(params != null)
+            url += toQueryString(params);
+        xml(connector, url, null, handler);
+    }
+
+    /**
+     * POST the params as a form, and parse the XML response.
+     */
+    public static void postXML(HttpConnector connector, String url, Param[] params, XMLHandler handler){
+        // the query string, without its leading ?
+        String form = params != null ? toQueryString(params).substring(1) : "";
+        try{
+            xml(connector, url, form.getBytes("UTF-8"), handler);
+        }catch(UnsupportedEncodingException x){
+            // can't happen
+            throw new RuntimeException(x);
+        }
+    }
+
+    private static void xml(HttpConnector connector, String url, byte[] form, XMLHandler handler){
         try{
-            if(params != null)
-                url += toQueryString(params);
             URL endpoint = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
-            connection.addRequestProperty("Accept", "application/xml");
-            connection.connect();
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Accept", "application/xml");
+            // search results are large and repetitive
+            headers.put("Accept-Encoding", "gzip, deflate");
+            HttpConnector.Response response;
+            if(form != null){
+                headers.put("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+                response = connector.post(endpoint, headers, form);
+            }else{
+                response = connector.get(endpoint, headers);
+            }
             try{
-                if(connection.getResponseCode() == 200){
-                    InputStream is = connection.getInputStream();
+                if(response.getCode() == 200){
+                    InputStream is = decode(response.getInputStream(), response.getHeader("Content-Encoding"));
+                    XMLInputFactory factory = XMLInputFactory.newFactory();
                     try{
-                        XMLInputFactory factory = XMLInputFactory.newFactory();
                         XMLStreamReader reader = factory.createXMLStreamReader(is);
                         try{
                             Parser p = new Parser(reader);
@@ -117,11 +152,13 @@ public class WS {
                             reader.close();
                         }
                     }finally{
+                        // also frees the decompressor
                         is.close();
                     }
                 }
             }finally{
-                connection.disconnect();
+                // hands the connection back to the pool
+                response.close();
             }
         }catch(XMLStreamException x){
             throw new RuntimeException(x);
@@ -130,6 +167,42 @@ public class WS {
         }
     }
 
+    /**
+     * Decompresses the body as it is read, according to its Content-Encoding.
+     */
+    static InputStream decode(InputStream is, String encoding) throws IOException {
+        if(encoding == null)
+            return is;
+        encoding = encoding.trim().toLowerCase(Locale.ENGLISH);
+        if(encoding.equals("gzip") || encoding.equals("x-gzip"))
+            return new GZIPInputStream(is, 8192);
+        if(encoding.equals("deflate")){
+            // should be zlib wrapped, but some servers send it raw
+            BufferedInputStream bis = new BufferedInputStream(is);
+            bis.mark(2);
+            int cmf = bis.read();
+            int flg = bis.read();
+            bis.reset();
+            boolean zlib = cmf != -1 && flg != -1
+                    && (cmf & 0x0f) == 8
+                    && ((cmf << 8) | flg) % 31 == 0;
+            final Inflater inflater = new Inflater(!zlib);
+            return new InflaterInputStream(bis, inflater, 8192){
+                @Override
+                public void close() throws IOException {
+                    try{
+                        super.close();
+                    }finally{
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        if(encoding.equals("identity"))
+            return is;
+        throw new IOException("Unsupported Content-Encoding: "+encoding);
+    }
+
     public static List<Link> collectLinks(HttpURLConnection con) {
         List<String> linkHeaders = con.getHeaderFields().get("Link");
         List<Link> ret = new LinkedList<Link>();
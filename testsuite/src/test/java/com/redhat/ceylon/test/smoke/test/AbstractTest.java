@@ -45,6 +45,7 @@ import com.redhat.ceylon.cmr.impl.DefaultRepository;
 import com.redhat.ceylon.cmr.impl.FileContentStore;
 import com.redhat.ceylon.cmr.impl.JULLogger;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Before;
 
@@ -55,6 +56,19 @@ public class AbstractTest {
 
     protected Logger log = new JULLogger();
 
+    // keeps what the repositories cache on disk out of the user's home
+    private static final File caches;
+
+    static {
+        try {
+            caches = Files.createTempDirectory("caches-").toFile();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty("ceylon.cmr.index.dir", new File(caches, "index").getPath());
+        System.setProperty("ceylon.cmr.descriptors.dir", new File(caches, "descriptors").getPath());
+    }
+
     private Path temp;
 
     @Before
@@ -64,7 +78,17 @@ public class AbstractTest {
 
     @After
     public void tearDown() throws Exception {
-        Files.walkFileTree(temp, new FileVisitor<Path>() {
+        delete(temp);
+    }
+
+    @AfterClass
+    public static void deleteCaches() throws Exception {
+        if (caches.exists())
+            delete(caches.toPath());
+    }
+
+    private static void delete(Path path) throws IOException {
+        Files.walkFileTree(path, new FileVisitor<Path>() {
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
                 return FileVisitResult.CONTINUE;
             }
@@ -88,6 +112,10 @@ public class AbstractTest {
         });
     }
 
+    protected File getTempDir() {
+        return temp.toFile();
+    }
+
     protected File getRepositoryRoot() throws URISyntaxException {
         URL url = getClass().getResource("/repo");
         Assert.assertNotNull("RepositoryManager root '/repo' not found", url);
@@ -0,0 +1,877 @@
+/*
+ * Copyright 2011 Red Hat inc. and third party contributors as noted
+ * by the author tags.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.ceylon.test.smoke.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
+import com.redhat.ceylon.cmr.api.ArtifactResult;
+import com.redhat.ceylon.cmr.api.ModuleQuery;
+import com.redhat.ceylon.cmr.api.ModuleSearchResult;
+import com.redhat.ceylon.cmr.api.Repository;
+import com.redhat.ceylon.cmr.api.RepositoryManager;
+import com.redhat.ceylon.cmr.api.RepositoryException;
+import com.redhat.ceylon.cmr.api.RepositoryManagerBuilder;
+import com.redhat.ceylon.cmr.impl.CachingRepositoryManager;
+import com.redhat.ceylon.cmr.impl.DefaultRepository;
+import com.redhat.ceylon.cmr.impl.IOUtils;
+import com.redhat.ceylon.cmr.impl.RootRepositoryManager;
+import com.redhat.ceylon.cmr.impl.MirroredContentStore;
+import com.redhat.ceylon.cmr.impl.RemoteContentStore;
+import com.redhat.ceylon.cmr.impl.URLContentStore;
+import com.redhat.ceylon.cmr.spi.Node;
+import com.redhat.ceylon.cmr.util.DownloadScheduler;
+import com.redhat.ceylon.cmr.util.HttpConnector;
+import com.redhat.ceylon.cmr.util.RemoteHealth;
+import com.redhat.ceylon.cmr.webdav.WebDAVContentStore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Remote repository tests, against a local HTTP server serving the test repo.
+ */
+public class RemoteTestCase extends AbstractTest {
+
+    private HttpServer server;
+    private String repoURL;
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private volatile boolean truncate;
+    private volatile boolean unavailable;
+    private volatile boolean herd;
+    private volatile String compression;
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void startServer() throws Exception {
+        final File root = getRepositoryRoot();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/repo/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(root, exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        repoURL = "http://localhost:" + server.getAddress().getPort() + "/repo/";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    protected void serve(File root, HttpExchange exchange) throws IOException {
+        final String method = exchange.getRequestMethod();
+        final String path = exchange.getRequestURI().getPath().substring("/repo/".length()).replaceFirst("^/+", "");
+        requests.add(method + " " + path);
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        if (unavailable) {
+            final byte[] down = "Down for maintenance".getBytes();
+            exchange.sendResponseHeaders(503, down.length);
+            exchange.getResponseBody().write(down);
+            return;
+        }
+        if (herd && method.equals("OPTIONS") && path.isEmpty()) {
+            exchange.getResponseHeaders().add("X-Herd-Version", "1");
+            exchange.getResponseHeaders().add("Link", "<" + repoURL + "complete-modules>; rel=\"" + URLContentStore.HERD_COMPLETE_MODULES_REL + "\", "
+                    + "<" + repoURL + "check-artifacts>; rel=\"" + URLContentStore.HERD_CHECK_ARTIFACTS_REL + "\"");
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        if (herd && method.equals("GET") && path.equals("complete-modules")) {
+            completeModules(exchange);
+            return;
+        }
+        if (herd && method.equals("POST") && path.equals("check-artifacts")) {
+            checkArtifacts(root, exchange);
+            return;
+        }
+        final File file = new File(root, path);
+        if (file.isFile() == false) {
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                final byte[] notFound = "Not found".getBytes();
+                exchange.sendResponseHeaders(404, notFound.length);
+                exchange.getResponseBody().write(notFound);
+            }
+            return;
+        }
+        final String etag = "\"" + file.length() + "-" + file.lastModified() + "\"";
+        exchange.getResponseHeaders().add("Last-Modified", httpDate(file.lastModified()));
+        exchange.getResponseHeaders().add("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            requests.set(requests.size() - 1, method + " " + path + " 304");
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        if (method.equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        int start = 0;
+        int end = bytes.length;
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            final String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            if (bounds.length > 1)
+                end = Integer.parseInt(bounds[1]) + 1;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + bytes.length);
+            requests.set(requests.size() - 1, method + " " + path + " from " + start);
+            exchange.sendResponseHeaders(206, end - start);
+        } else {
+            exchange.sendResponseHeaders(200, bytes.length);
+        }
+        if (truncate) {
+            // send half of it, and drop the connection
+            truncate = false;
+            exchange.getResponseBody().write(bytes, start, (end - start) / 2);
+            exchange.getResponseBody().flush();
+            throw new IOException("Truncated");
+        }
+        exchange.getResponseBody().write(bytes, start, end - start);
+    }
+
+    private void checkArtifacts(File root, HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream form = new ByteArrayOutputStream();
+        IOUtils.copyStream(exchange.getRequestBody(), form);
+        List<String> values = new ArrayList<String>();
+        for (String param : form.toString("UTF-8").split("&")) {
+            values.add(URLDecoder.decode(param.substring(param.indexOf('=') + 1), "UTF-8"));
+        }
+        StringBuilder xml = new StringBuilder("<artifacts>");
+        for (int i = 0; i < values.size(); i += 3) {
+            String module = values.get(i), version = values.get(i + 1), suffix = values.get(i + 2);
+            File file = new File(root, module.replace('.', '/') + "/" + version + "/" + module + "-" + version + suffix);
+            xml.append("<artifact module=\"").append(module).append("\" version=\"").append(version)
+                    .append("\" suffix=\"").append(suffix).append("\" exists=\"").append(file.isFile()).append("\"/>");
+        }
+        byte[] bytes = xml.append("</artifacts>").toString().getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private void completeModules(HttpExchange exchange) throws IOException {
+        byte[] xml = ("<results total=\"1\"><module><name>com.acme.helloworld</name><versions>1.0.0</versions>"
+                + "<doc>Hello World</doc><license>ASL</license><authors>Ceylon</authors></module></results>").getBytes("UTF-8");
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        requests.set(requests.size() - 1, requests.get(requests.size() - 1) + " " + accepted);
+        if (compression == null) {
+            exchange.sendResponseHeaders(200, xml.length);
+            exchange.getResponseBody().write(xml);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream os;
+        if (compression.equals("gzip"))
+            os = new GZIPOutputStream(bytes);
+        else if (compression.equals("deflate"))
+            os = new DeflaterOutputStream(bytes);
+        else
+            os = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        os.write(xml);
+        os.close();
+        exchange.getResponseHeaders().add("Content-Encoding", compression.startsWith("raw ") ? compression.substring(4) : compression);
+        exchange.sendResponseHeaders(200, bytes.size());
+        bytes.writeTo(exchange.getResponseBody());
+    }
+
+    protected static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    protected RepositoryManager getRemoteRepositoryManager() throws Exception {
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(getFolders());
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        Repository repo = new DefaultRepository(rcs.createRoot());
+        return builder.appendRepository(repo).buildRepository();
+    }
+
+    @Test
+    public void testRemoteArtifact() throws Exception {
+        RepositoryManager manager = getRemoteRepositoryManager();
+        File file = manager.getArtifact("com.acme.helloworld", "1.0.0");
+        Assert.assertNotNull(file);
+        Assert.assertEquals(new File(getRepositoryRoot(), "com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car").length(), file.length());
+        Assert.assertNull(manager.getArtifact("com.acme.helloworld", "9.9.9"));
+    }
+
+    @Test
+    public void testOptimisticFetch() throws Exception {
+        RepositoryManager manager = getRemoteRepositoryManager();
+        Assert.assertNotNull(manager.getArtifact("com.acme.helloworld", "1.0.0"));
+        // no HEAD, a single GET for the artifact and one for its checksum
+        Assert.assertEquals(Arrays.asList("GET com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car",
+                "GET com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car.sha1"), requests);
+    }
+
+    @Test
+    public void testOptimisticFetchOfLargeArtifact() throws Exception {
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(getFolders());
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setPrefetchLimit(100);
+        RepositoryManager manager = builder.appendRepository(new DefaultRepository(rcs.createRoot())).buildRepository();
+
+        File file = manager.getArtifact("com.acme.helloworld", "1.0.0");
+        Assert.assertNotNull(file);
+        File original = new File(getRepositoryRoot(), "com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car");
+        Assert.assertArrayEquals(Files.readAllBytes(original.toPath()), Files.readAllBytes(file.toPath()));
+        // too big to keep in memory, but still downloaded from the lookup's response
+        Assert.assertEquals(Arrays.asList("GET com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car",
+                "GET com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car.sha1"), requests);
+        Assert.assertEquals(requests.toString(), 1, clientPorts.size());
+    }
+
+    @Test
+    public void testUnreadResponsesDoNotHoldConnections() throws Exception {
+        HttpConnector connector = new HttpConnector();
+        connector.setMaxConnectionsPerHost(1);
+        connector.setConnectTimeout(2000);
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setConnector(connector);
+        rcs.setPrefetchLimit(100);
+        Repository repo = new DefaultRepository(rcs.createRoot());
+        ArtifactContext context = new ArtifactContext("com.acme.helloworld", "1.0.0", ArtifactContext.CAR);
+        // found, but nobody reads them
+        Node node = null;
+        for (int i = 0; i < 3; i++) {
+            node = rcs.lookup(repo.findParent(context), repo.getArtifactName(context));
+            Assert.assertNotNull(node);
+        }
+        Assert.assertTrue(rcs.getHealth().isAvailable());
+        // the last one can still be read from its response
+        File original = new File(getRepositoryRoot(), "com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IOUtils.copyStream(node.getInputStream(), bytes);
+        Assert.assertArrayEquals(Files.readAllBytes(original.toPath()), bytes.toByteArray());
+        Assert.assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void testSchedulerTimeoutIsNotAFailure() throws Exception {
+        HttpConnector connector = new HttpConnector();
+        connector.setMaxConnectionsPerHost(1);
+        connector.setConnectTimeout(200);
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setConnector(connector);
+        // we keep the only connection busy
+        HttpConnector.Response busy = connector.get(new URL(repoURL + "hello/1.0.0/hello-1.0.0.car"), null);
+        try {
+            for (int i = 0; i < 5; i++) {
+                try {
+                    rcs.lookup(rcs.createRoot(), "missing.car");
+                    Assert.fail("Should have timed out");
+                } catch (IOException expected) {
+                }
+            }
+            Assert.assertTrue(rcs.getHealth().isAvailable());
+        } finally {
+            busy.close();
+        }
+    }
+
+    @Test
+    public void testConditionalRevalidation() throws Exception {
+        File cachingDir = Files.createTempDirectory("caching-").toFile();
+        try {
+            WebDAVContentStore store = new WebDAVContentStore(repoURL, log);
+            store.setHerdCacheDir(null);
+            CachingRepositoryManager manager = new CachingRepositoryManager(new DefaultRepository(store.createRoot()), cachingDir, log);
+            Assert.assertNotNull(manager.getArtifact("hello", "1.0.0"));
+            Assert.assertTrue(requests.contains("GET hello/1.0.0/hello-1.0.0.car"));
+
+            // fresh: no request at all
+            requests.clear();
+            Assert.assertNotNull(manager.getArtifact("hello", "1.0.0"));
+            Assert.assertEquals(Collections.emptyList(), requests);
+
+            // stale: revalidated without a body
+            manager.setMaxAge(0);
+            Assert.assertNotNull(manager.getArtifact("hello", "1.0.0"));
+            Assert.assertTrue(requests.toString(), requests.contains("GET hello/1.0.0/hello-1.0.0.car 304"));
+        } finally {
+            delete(cachingDir);
+        }
+    }
+
+    @Test
+    public void testConditionalRevalidationWithOptimisticFetch() throws Exception {
+        // small artifacts are prefetched, larger ones read from the response
+        for (int prefetchLimit : new int[]{RemoteContentStore.DEFAULT_PREFETCH_LIMIT, 0}) {
+            File cachingDir = Files.createTempDirectory("caching-").toFile();
+            try {
+                RemoteContentStore store = new RemoteContentStore(repoURL, log);
+                store.setHerdCacheDir(null);
+                store.setPrefetchLimit(prefetchLimit);
+                CachingRepositoryManager manager = new CachingRepositoryManager(new DefaultRepository(store.createRoot()), cachingDir, log);
+                requests.clear();
+                Assert.assertNotNull(manager.getArtifact("hello", "1.0.0"));
+                Assert.assertEquals(1, Collections.frequency(requests, "GET hello/1.0.0/hello-1.0.0.car"));
+
+                // stale: the lookup itself is the conditional GET, without a body
+                requests.clear();
+                manager.setMaxAge(0);
+                File file = manager.getArtifact("hello", "1.0.0");
+                Assert.assertNotNull(file);
+                Assert.assertTrue(file.length() > 0);
+                Assert.assertEquals(Arrays.asList("GET hello/1.0.0/hello-1.0.0.car 304"), requests);
+            } finally {
+                delete(cachingDir);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void testResumeDownload() throws Exception {
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(getFolders());
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setOptimisticFetch(false);
+        RepositoryManager manager = builder.appendRepository(new DefaultRepository(rcs.createRoot())).buildRepository();
+
+        truncate = true;
+        try {
+            manager.getArtifact("com.acme.helloworld", "1.0.0");
+            Assert.fail("Download should have failed");
+        } catch (RepositoryException expected) {
+        }
+        File file = manager.getArtifact("com.acme.helloworld", "1.0.0");
+        Assert.assertNotNull(file);
+        File original = new File(getRepositoryRoot(), "com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car");
+        Assert.assertTrue(requests.toString(), requests.contains("GET com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car from " + original.length() / 2));
+        Assert.assertArrayEquals(Files.readAllBytes(original.toPath()), Files.readAllBytes(file.toPath()));
+        Assert.assertFalse(new File(file.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(getFolders());
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setPrefetchLimit(0);
+        rcs.setSegmentThreshold(100);
+        rcs.setSegments(3);
+        RepositoryManager manager = builder.appendRepository(new DefaultRepository(rcs.createRoot())).buildRepository();
+
+        File file = manager.getArtifact("com.acme.helloworld", "1.0.0");
+        Assert.assertNotNull(file);
+        File original = new File(getRepositoryRoot(), "com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car");
+        long segment = (original.length() + 2) / 3;
+        Assert.assertTrue(requests.toString(), requests.contains("GET com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car from " + segment));
+        Assert.assertTrue(requests.toString(), requests.contains("GET com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car from " + 2 * segment));
+        Assert.assertArrayEquals(Files.readAllBytes(original.toPath()), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        HttpConnector connector = new HttpConnector();
+        for (String path : new String[]{"hello/1.0.0/hello-1.0.0.car", "missing.car", "default/default.car"}) {
+            HttpConnector.Response response = connector.get(new URL(repoURL + path), null);
+            IOUtils.copyStream(response.getInputStream(), new ByteArrayOutputStream());
+        }
+        // sequential requests all go over the same kept-alive connection
+        Assert.assertEquals(requests.toString(), 1, clientPorts.size());
+    }
+
+    @Test
+    public void testInteractiveRequestsGoFirst() throws Exception {
+        final HttpConnector connector = new HttpConnector();
+        connector.setMaxConnectionsPerHost(1);
+        final DownloadScheduler scheduler = connector.getScheduler();
+        HttpConnector.Response busy = connector.get(new URL(repoURL + "hello/1.0.0/hello-1.0.0.car"), null);
+        Thread background = fetchLater(connector, "default/default.car", DownloadScheduler.Priority.BACKGROUND);
+        waitForQueueDepth(scheduler, 1);
+        Thread interactive = fetchLater(connector, "missing.car", DownloadScheduler.Priority.INTERACTIVE);
+        waitForQueueDepth(scheduler, 2);
+        DownloadScheduler.HostStats stats = scheduler.getStats().values().iterator().next();
+        Assert.assertEquals(1, stats.getActive());
+        Assert.assertEquals(1, stats.getQueuedInteractive());
+        Assert.assertEquals(1, stats.getQueuedBackground());
+
+        busy.close();
+        background.join(10000);
+        interactive.join(10000);
+        Assert.assertEquals(Arrays.asList("GET hello/1.0.0/hello-1.0.0.car", "GET missing.car", "GET default/default.car"), requests);
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+        Assert.assertEquals(3, scheduler.getStats().values().iterator().next().getRequests());
+    }
+
+    @Test
+    public void testBackgroundRequestsLeaveAConnection() throws Exception {
+        final HttpConnector connector = new HttpConnector();
+        connector.setMaxConnectionsPerHost(2);
+        final DownloadScheduler scheduler = connector.getScheduler();
+        DownloadScheduler.Priority previous = DownloadScheduler.setPriority(DownloadScheduler.Priority.BACKGROUND);
+        HttpConnector.Response busy;
+        try {
+            busy = connector.get(new URL(repoURL + "hello/1.0.0/hello-1.0.0.car"), null);
+        } finally {
+            DownloadScheduler.setPriority(previous);
+        }
+        // the last connection is kept for interactive requests
+        Thread background = fetchLater(connector, "default/default.car", DownloadScheduler.Priority.BACKGROUND);
+        waitForQueueDepth(scheduler, 1);
+        connector.get(new URL(repoURL + "missing.car"), null).close();
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+
+        busy.close();
+        background.join(10000);
+        Assert.assertEquals(Arrays.asList("GET hello/1.0.0/hello-1.0.0.car", "GET missing.car", "GET default/default.car"), requests);
+    }
+
+    private Thread fetchLater(final HttpConnector connector, final String path, final DownloadScheduler.Priority priority) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                DownloadScheduler.setPriority(priority);
+                try {
+                    connector.get(new URL(repoURL + path), null).close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForQueueDepth(DownloadScheduler scheduler, int depth) throws InterruptedException {
+        for (int i = 0; i < 1000 && scheduler.getQueueDepth() < depth; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(depth, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void testBandwidthLimit() throws Exception {
+        HttpConnector connector = new HttpConnector();
+        File original = new File(getRepositoryRoot(), "com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car");
+        // the bucket starts empty, so this takes about two seconds
+        long limit = original.length() / 2;
+        connector.getScheduler().setBandwidthLimit(limit);
+        long start = System.currentTimeMillis();
+        HttpConnector.Response response = connector.get(new URL(repoURL + "com/acme/helloworld/1.0.0/com.acme.helloworld-1.0.0.car"), null);
+        IOUtils.copyStream(response.getInputStream(), new ByteArrayOutputStream());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 800);
+        Assert.assertEquals(original.length(), connector.getScheduler().getStats().values().iterator().next().getBytes());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(getFolders());
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.getHealth().setFailureThreshold(2);
+        rcs.getHealth().setCoolDown(200);
+        RepositoryManager manager = builder.appendRepository(new DefaultRepository(rcs.createRoot())).buildRepository();
+
+        // lookups are remembered by the node tree, so each step looks up something new
+        unavailable = true;
+        Assert.assertNull(manager.getArtifact("com.acme.first", "1.0.0"));
+        Assert.assertEquals(RemoteHealth.State.CLOSED, rcs.getHealth().getState());
+        Assert.assertNull(manager.getArtifact("com.acme.second", "1.0.0"));
+        Assert.assertEquals(requests.toString(), RemoteHealth.State.OPEN, rcs.getHealth().getState());
+        // open: misses without asking
+        int sent = requests.size();
+        Assert.assertNull(manager.getArtifact("com.acme.third", "1.0.0"));
+        Assert.assertEquals(sent, requests.size());
+        Assert.assertTrue(rcs.getHealth().getSkipped() > 0);
+
+        // once cooled down, the probe closes it again
+        unavailable = false;
+        Thread.sleep(300);
+        Assert.assertNotNull(manager.getArtifact("com.acme.helloworld", "1.0.0"));
+        Assert.assertEquals(RemoteHealth.State.CLOSED, rcs.getHealth().getState());
+        Assert.assertTrue(rcs.getHealth().getAverageLatency() >= 0);
+    }
+
+    @Test
+    public void testLostProbe() throws Exception {
+        RemoteHealth health = new RemoteHealth();
+        health.setFailureThreshold(1);
+        health.setCoolDown(200);
+        health.failure();
+        Assert.assertFalse(health.allowRequest());
+
+        // the probe goes, and nothing else until it reports back
+        Thread.sleep(300);
+        Assert.assertTrue(health.allowRequest());
+        Assert.assertEquals(RemoteHealth.State.HALF_OPEN, health.getState());
+        Assert.assertFalse(health.allowRequest());
+        Assert.assertFalse(health.isAvailable());
+
+        // or until it is given up for lost
+        Thread.sleep(300);
+        Assert.assertTrue(health.isAvailable());
+        Assert.assertTrue(health.allowRequest());
+        health.success(-1);
+        Assert.assertEquals(RemoteHealth.State.CLOSED, health.getState());
+    }
+
+    protected RepositoryManager getMirroredRepositoryManager(MirroredContentStore store) throws Exception {
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(getFolders());
+        return builder.appendRepository(new DefaultRepository(store.createRoot())).buildRepository();
+    }
+
+    @Test
+    public void testMirrorFailover() throws Exception {
+        RemoteContentStore dead = new RemoteContentStore("http://localhost:1/repo/", log);
+        RemoteContentStore alive = new RemoteContentStore(repoURL, log);
+        MirroredContentStore store = new MirroredContentStore(Arrays.asList(dead, alive), log);
+        RepositoryManager manager = getMirroredRepositoryManager(store);
+
+        Assert.assertNotNull(manager.getArtifact("com.acme.helloworld", "1.0.0"));
+        Assert.assertTrue(dead.getHealth().getFailures() > 0);
+        // a miss from a mirror which answered is final
+        Assert.assertNull(manager.getArtifact("com.acme.helloworld", "9.9.9"));
+        Assert.assertSame(alive, store.getPreferredMirror());
+    }
+
+    @Test
+    public void testLookupOutcome() throws Exception {
+        RemoteContentStore alive = new RemoteContentStore(repoURL, log);
+        // a miss is an answer
+        Assert.assertNull(alive.lookup(alive.createRoot(), "missing.car"));
+        RemoteContentStore dead = new RemoteContentStore("http://localhost:1/repo/", log);
+        try {
+            dead.lookup(dead.createRoot(), "missing.car");
+            Assert.fail("A failure is not a miss");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testHedgedMirrorLookup() throws Exception {
+        final File root = getRepositoryRoot();
+        final long[] delay = {0};
+        HttpServer slowServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        slowServer.createContext("/repo/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(delay[0]);
+                    serve(root, exchange);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        slowServer.start();
+        try {
+            RemoteContentStore slow = new RemoteContentStore("http://localhost:" + slowServer.getAddress().getPort() + "/repo/", log);
+            RemoteContentStore fast = new RemoteContentStore(repoURL, log);
+            MirroredContentStore store = new MirroredContentStore(Arrays.<URLContentStore>asList(slow, fast), log);
+            store.setHedging(true);
+            // the first mirror used to be the fastest
+            for (int i = 0; i < 10; i++) {
+                slow.getHealth().success(1000000);
+                fast.getHealth().success(50000000);
+            }
+            Assert.assertSame(slow, store.getPreferredMirror());
+
+            delay[0] = 2000;
+            RepositoryManager manager = getMirroredRepositoryManager(store);
+            Assert.assertNotNull(manager.getArtifact("com.acme.helloworld", "1.0.0"));
+            Assert.assertTrue(store.getHedgedCount() > 0);
+        } finally {
+            slowServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testOfflineMode() throws Exception {
+        // fill the cache
+        Assert.assertNotNull(getRemoteRepositoryManager().getArtifact("com.acme.helloworld", "1.0.0"));
+        requests.clear();
+
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        RepositoryManager manager = getRepositoryManagerBuilder(getFolders())
+                .offline(true)
+                .appendRepository(new DefaultRepository(rcs.createRoot()))
+                .buildRepository();
+        Assert.assertNotNull(manager.getArtifact("com.acme.helloworld", "1.0.0"));
+        Assert.assertNull(manager.getArtifact("hello", "1.0.0"));
+        Assert.assertFalse(rcs.isHerd());
+        Assert.assertEquals(Collections.emptyList(), requests);
+        Assert.assertTrue(((RootRepositoryManager) manager).getBlockedNetworkAccesses() >= 2);
+
+        // and back online
+        ((RootRepositoryManager) manager).setOffline(false);
+        Assert.assertNotNull(manager.getArtifact("hello", "1.0.0"));
+    }
+
+    @Test
+    public void testHerdDetectionIsCached() throws Exception {
+        File herdCacheDir = Files.createTempDirectory("herd-").toFile();
+        try {
+            herd = true;
+            RemoteContentStore first = new RemoteContentStore(repoURL, log);
+            first.setHerdCacheDir(herdCacheDir);
+            Assert.assertTrue(first.isHerd());
+            Assert.assertEquals(Arrays.asList("OPTIONS "), requests);
+
+            // as if in a new process
+            requests.clear();
+            RemoteContentStore second = new RemoteContentStore(repoURL, log);
+            second.setHerdCacheDir(herdCacheDir);
+            Assert.assertTrue(second.isHerd());
+            second.completeModules(new ModuleQuery("com.acme", ModuleQuery.Type.JVM), new ModuleSearchResult());
+            Assert.assertEquals(Arrays.asList("GET complete-modules gzip, deflate"), requests);
+
+            // expired
+            requests.clear();
+            RemoteContentStore third = new RemoteContentStore(repoURL, log);
+            third.setHerdCacheDir(herdCacheDir);
+            third.setHerdCacheTtl(0);
+            Assert.assertTrue(third.isHerd());
+            Assert.assertEquals(Arrays.asList("OPTIONS "), requests);
+        } finally {
+            delete(herdCacheDir);
+        }
+    }
+
+    @Test
+    public void testBulkExistence() throws Exception {
+        List<ArtifactContext> artifacts = Arrays.asList(
+                new ArtifactContext("com.acme.helloworld", "1.0.0", ArtifactContext.CAR),
+                new ArtifactContext("hello", "1.0.0", ArtifactContext.CAR),
+                new ArtifactContext("com.acme.helloworld", "9.9.9", ArtifactContext.CAR));
+
+        // not Herd: one check per artifact
+        RemoteContentStore plain = new RemoteContentStore(repoURL, log);
+        plain.setHerdCacheDir(null);
+        Assert.assertEquals(Arrays.asList(true, true, false), new ArrayList<Boolean>(plain.exist(artifacts).values()));
+        Assert.assertEquals(requests.toString(), 4, requests.size());
+
+        // Herd: a single request
+        herd = true;
+        requests.clear();
+        RemoteContentStore store = new RemoteContentStore(repoURL, log);
+        store.setHerdCacheDir(null);
+        Assert.assertEquals(Arrays.asList(true, true, false), new ArrayList<Boolean>(store.exist(artifacts).values()));
+        Assert.assertEquals(Arrays.asList("OPTIONS ", "POST check-artifacts"), requests);
+    }
+
+    @Test
+    public void testDependenciesAreCheckedAtOnce() throws Exception {
+        herd = true;
+        File local = new File(getTempDir(), "local");
+        File dir = new File(local, "mine/1.0");
+        Assert.assertTrue(dir.mkdirs());
+        Files.copy(new File(getRepositoryRoot(), "old-jar/1.2.CR1/old-jar-1.2.CR1.jar").toPath(), new File(dir, "mine-1.0.jar").toPath());
+        Files.write(new File(dir, "module.properties").toPath(), "hello=1.0.0\ncom.acme.helloworld=1.0.0\nmissing=1.0\n".getBytes("UTF-8"));
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(local);
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setHerdCacheDir(null);
+        RepositoryManager manager = builder.appendRepository(new DefaultRepository(rcs.createRoot())).buildRepository();
+
+        ArtifactResult mine = manager.getArtifactResult(new ArtifactContext("mine", "1.0", ArtifactContext.JAR));
+        List<ArtifactResult> dependencies = mine.dependencies();
+        Assert.assertEquals(3, dependencies.size());
+        // nothing until one of them is looked up
+        Assert.assertEquals(Collections.emptyList(), requests);
+        ArtifactResult missing = null;
+        for (ArtifactResult dependency : dependencies) {
+            if (dependency.name().equals("missing"))
+                missing = dependency;
+            else
+                Assert.assertNotNull(dependency.artifact());
+        }
+        Assert.assertEquals(Arrays.asList("OPTIONS ", "POST check-artifacts"), requests.subList(0, 2));
+        Assert.assertEquals(1, Collections.frequency(requests, "POST check-artifacts"));
+        // the lookups only go out for the ones it has
+        try {
+            missing.artifact();
+            Assert.fail("missing was found");
+        } catch (RuntimeException expected) {
+        }
+        for (String request : requests)
+            Assert.assertFalse(request, request.contains("missing"));
+
+        // which is only for that module, the next lookup asks again
+        Assert.assertNull(manager.getArtifact("missing", "1.0"));
+        Assert.assertTrue(requests.toString(), requests.get(requests.size() - 1).contains("missing"));
+    }
+
+    @Test
+    public void testDependenciesAreNotCheckedOneByOne() throws Exception {
+        File local = new File(getTempDir(), "local");
+        File dir = new File(local, "mine/1.0");
+        Assert.assertTrue(dir.mkdirs());
+        Files.copy(new File(getRepositoryRoot(), "old-jar/1.2.CR1/old-jar-1.2.CR1.jar").toPath(), new File(dir, "mine-1.0.jar").toPath());
+        Files.write(new File(dir, "module.properties").toPath(), "hello=1.0.0\ncom.acme.helloworld=1.0.0\n".getBytes("UTF-8"));
+        RepositoryManagerBuilder builder = getRepositoryManagerBuilder(local);
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setHerdCacheDir(null);
+        RepositoryManager manager = builder.appendRepository(new DefaultRepository(rcs.createRoot())).buildRepository();
+
+        ArtifactResult mine = manager.getArtifactResult(new ArtifactContext("mine", "1.0", ArtifactContext.JAR));
+        for (ArtifactResult dependency : mine.dependencies())
+            Assert.assertNotNull(dependency.artifact());
+        // without a bulk query, checking first would be one more round trip per dependency
+        for (String request : requests)
+            Assert.assertFalse(request, request.startsWith("HEAD") || request.startsWith("POST"));
+    }
+
+    @Test
+    public void testCompressedSearchResults() throws Exception {
+        herd = true;
+        for (String encoding : new String[]{"gzip", "deflate", "raw deflate", null}) {
+            compression = encoding;
+            RemoteContentStore store = new RemoteContentStore(repoURL, log);
+            store.setHerdCacheDir(null);
+            ModuleSearchResult result = new ModuleSearchResult();
+            store.completeModules(new ModuleQuery("com.acme", ModuleQuery.Type.JVM), result);
+            Assert.assertEquals(String.valueOf(encoding), 1, result.getCount());
+            Assert.assertEquals("Hello World", result.getResult("com.acme.helloworld").getDoc());
+        }
+        Assert.assertTrue(requests.toString(), requests.contains("GET complete-modules gzip, deflate"));
+    }
+
+    @Test
+    public void testCompletionCache() throws Exception {
+        herd = true;
+        RemoteContentStore rcs = new RemoteContentStore(repoURL, log);
+        rcs.setHerdCacheDir(null);
+        RootRepositoryManager manager = (RootRepositoryManager) getRepositoryManagerBuilder(getFolders())
+                .appendRepository(new DefaultRepository(rcs.createRoot()))
+                .buildRepository();
+        ModuleSearchResult result = manager.completeModules(new ModuleQuery("com", ModuleQuery.Type.JVM));
+        Assert.assertNotNull(result.getResult("com.acme.helloworld"));
+        requests.clear();
+
+        // the same query comes from the cache
+        Assert.assertNotNull(manager.completeModules(new ModuleQuery("com", ModuleQuery.Type.JVM)).getResult("com.acme.helloworld"));
+        Assert.assertEquals(Collections.emptyList(), requests);
+        Assert.assertEquals(1, manager.getCompletionCacheHits());
+
+        // but not a longer prefix, which may go past a module the shorter one stopped at
+        result = manager.completeModules(new ModuleQuery("com.acme.h", ModuleQuery.Type.JVM));
+        Assert.assertEquals(result.getModuleNames().toString(), 1, result.getCount());
+        Assert.assertEquals(1, requests.size());
+
+        // nor another type
+        manager.completeModules(new ModuleQuery("com", ModuleQuery.Type.JS));
+        Assert.assertEquals(2, requests.size());
+
+        // changes clear it
+        manager.removeArtifact(new ArtifactContext("com.acme.nothing", "1.0.0", ArtifactContext.CAR));
+        manager.completeModules(new ModuleQuery("com", ModuleQuery.Type.JVM));
+        Assert.assertEquals(3, requests.size());
+
+        // and it can be turned off
+        manager.setCompletionCacheTtl(0);
+        manager.completeModules(new ModuleQuery("com", ModuleQuery.Type.JVM));
+        Assert.assertEquals(4, requests.size());
+    }
+
+    @Test
+    public void testParallelSearch() throws Exception {
+        List<HttpServer> servers = new ArrayList<HttpServer>();
+        try {
+            RepositoryManagerBuilder builder = getRepositoryManagerBuilder(getFolders());
+            for (int i = 0; i < 2; i++) {
+                final HttpServer slowServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+                final String url = "http://localhost:" + slowServer.getAddress().getPort() + "/repo/";
+                final String doc = "Hello from " + i;
+                slowServer.createContext("/repo/", new HttpHandler() {
+                    public void handle(HttpExchange exchange) throws IOException {
+                        try {
+                            if (exchange.getRequestMethod().equals("OPTIONS")) {
+                                exchange.getResponseHeaders().add("X-Herd-Version", "1");
+                                exchange.getResponseHeaders().add("Link", "<" + url + "search-modules>; rel=\"" + URLContentStore.HERD_SEARCH_MODULES_REL + "\"");
+                                exchange.sendResponseHeaders(200, -1);
+                                return;
+                            }
+                            Thread.sleep(1000);
+                            byte[] xml = ("<results total=\"1\"><module><name>com.acme.helloworld</name><versions>1.0.0</versions>"
+                                    + "<doc>" + doc + "</doc></module></results>").getBytes("UTF-8");
+                            exchange.sendResponseHeaders(200, xml.length);
+                            exchange.getResponseBody().write(xml);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        } finally {
+                            exchange.close();
+                        }
+                    }
+                });
+                slowServer.start();
+                servers.add(slowServer);
+                RemoteContentStore rcs = new RemoteContentStore(url, log);
+                rcs.setHerdCacheDir(null);
+                builder.appendRepository(new DefaultRepository(rcs.createRoot()));
+            }
+            RepositoryManager manager = builder.buildRepository();
+
+            long start = System.currentTimeMillis();
+            ModuleSearchResult result = manager.searchModules(new ModuleQuery("hello", ModuleQuery.Type.JVM));
+            long time = System.currentTimeMillis() - start;
+            Assert.assertTrue("Took " + time + "ms", time < 1900);
+            // merged in the order of the roots
+            Assert.assertEquals(1, result.getCount());
+            Assert.assertEquals("Hello from 0", result.getResult("com.acme.helloworld").getDoc());
+        } finally {
+            for (HttpServer slowServer : servers) {
+                slowServer.stop(0);
+            }
+        }
+    }
+}
@@ -19,21 +19,37 @@ package com.redhat.ceylon.test.smoke.test;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.redhat.ceylon.cmr.api.ArtifactContext;
 import com.redhat.ceylon.cmr.api.ArtifactResult;
+import com.redhat.ceylon.cmr.api.ModuleInfo;
 import com.redhat.ceylon.cmr.api.ModuleQuery;
 import com.redhat.ceylon.cmr.api.ModuleQuery.Type;
 import com.redhat.ceylon.cmr.api.ModuleSearchResult;
 import com.redhat.ceylon.cmr.api.ModuleSearchResult.ModuleDetails;
 import com.redhat.ceylon.cmr.api.ModuleVersionDetails;
+import com.redhat.ceylon.cmr.api.ModuleVersionQuery;
+import com.redhat.ceylon.cmr.api.ModuleVersionResult;
 import com.redhat.ceylon.cmr.api.Repository;
 import com.redhat.ceylon.cmr.api.RepositoryManager;
 import com.redhat.ceylon.cmr.api.RepositoryManagerBuilder;
 import com.redhat.ceylon.cmr.api.VersionComparator;
+import com.redhat.ceylon.cmr.impl.BytecodeUtils;
 import com.redhat.ceylon.cmr.impl.DefaultRepository;
+import com.redhat.ceylon.cmr.impl.FileContentStore;
 import com.redhat.ceylon.cmr.impl.JDKRepository;
+import com.redhat.ceylon.cmr.impl.ModuleDescriptorCache;
+import com.redhat.ceylon.cmr.impl.ModuleIndex;
 import com.redhat.ceylon.cmr.impl.MavenRepositoryHelper;
 import com.redhat.ceylon.cmr.impl.RemoteContentStore;
 import com.redhat.ceylon.cmr.impl.SimpleRepositoryManager;
@@ -346,6 +362,29 @@ public class SmokeTestCase extends AbstractTest {
         testComplete("org.", expected, manager);
     }
 
+    @Test
+    public void testCompleteLimited() throws Exception {
+        RepositoryManager manager = getRepositoryManager();
+
+        ModuleQuery query = new ModuleQuery("", Type.JVM);
+        query.setCount(2l);
+        ModuleSearchResult result = manager.completeModules(query);
+        Assert.assertEquals(Arrays.asList("com.acme.helloworld", "hello"), new ArrayList<String>(result.getModuleNames()));
+        Assert.assertTrue(result.getHasMoreResults());
+    }
+
+    @Test
+    public void testCompleteNestedModules() throws Exception {
+        FileContentStore store = new FileContentStore(new File(getTempDir(), "repo"));
+        RepositoryManager manager = new SimpleRepositoryManager(new DefaultRepository(store.createRoot()), log);
+        manager.putArtifact(new ArtifactContext("a.b", "1.0.0", ArtifactContext.JS), new ByteArrayInputStream(new byte[]{}));
+        manager.putArtifact(new ArtifactContext("a.b.c", "1.0.0", ArtifactContext.JS), new ByteArrayInputStream(new byte[]{}));
+
+        // completion stops at a.b, but going past it finds a.b.c
+        Assert.assertEquals(Arrays.asList("a.b"), new ArrayList<String>(manager.completeModules(new ModuleQuery("a", Type.JS)).getModuleNames()));
+        Assert.assertEquals(Arrays.asList("a.b.c"), new ArrayList<String>(manager.completeModules(new ModuleQuery("a.b.", Type.JS)).getModuleNames()));
+    }
+
     @Test
     public void testCompleteStopAtVersion() throws Exception {
         RepositoryManager manager = getRepositoryManager();
@@ -427,6 +466,330 @@ public class SmokeTestCase extends AbstractTest {
         Assert.assertEquals(4, results.getStart());
     }
 
+    @Test
+    public void testSearchModulesPagedAcrossRoots() throws Exception {
+        File repo = new File(getTempDir(), "repo");
+        for (String name : new String[]{"hello", "hello2"}) {
+            File car = new File(repo, name + "/1.0.0/" + name + "-1.0.0.car");
+            Assert.assertTrue(car.getParentFile().mkdirs());
+            Files.copy(new File(getRepositoryRoot(), "hello/1.0.0/hello-1.0.0.car").toPath(), car.toPath());
+        }
+        RepositoryManager manager = getRepositoryManagerBuilder()
+                .appendRepository(new DefaultRepository(new FileContentStore(repo).createRoot()))
+                .buildRepository();
+
+        ModuleQuery query = new ModuleQuery("", Type.JVM);
+        query.setStart(0l);
+        query.setCount(2l);
+        ModuleSearchResult results = manager.searchModules(query);
+        Assert.assertEquals(Arrays.asList("com.acme.helloworld", "hello"), new ArrayList<String>(results.getModuleNames()));
+        // both roots had hello
+        Assert.assertArrayEquals(new long[]{2, 1}, results.getNextPagingInfo());
+        Assert.assertTrue(results.getHasMoreResults());
+
+        query.setStart(2l);
+        query.setPagingInfo(results.getNextPagingInfo());
+        results = manager.searchModules(query);
+        Assert.assertEquals(Arrays.asList("hello2", "moduletest"), new ArrayList<String>(results.getModuleNames()));
+        Assert.assertArrayEquals(new long[]{3, 2}, results.getNextPagingInfo());
+        Assert.assertTrue(results.getHasMoreResults());
+    }
+
+    @Test
+    public void testSearchModulesStreaming() throws Exception {
+        RepositoryManager repoManager = getRepositoryManager();
+        final List<String> found = new ArrayList<String>();
+        ModuleSearchResult.Listener listener = new ModuleSearchResult.Listener() {
+            @Override
+            public void onResult(ModuleDetails details) {
+                found.add(details.getName());
+            }
+        };
+
+        ModuleSearchResult results = repoManager.searchModules(new ModuleQuery("", Type.JVM), listener);
+        Assert.assertEquals(6, results.getCount());
+        Assert.assertTrue(found.containsAll(results.getModuleNames()));
+
+        // when paging we only get the page, in order
+        found.clear();
+        ModuleQuery query = new ModuleQuery("", Type.JVM);
+        query.setStart(0l);
+        query.setCount(2l);
+        repoManager.searchModules(query, listener);
+        Assert.assertEquals(Arrays.asList("com.acme.helloworld", "hello"), found);
+    }
+
+    @Test
+    public void testSearchModulesStreamsEachHit() throws Exception {
+        // alone, the root is searched on our thread
+        checkHitIsStreamed(false);
+        checkHitIsStreamed(true);
+    }
+
+    private void checkHitIsStreamed(boolean withOtherRoot) throws Exception {
+        final CountDownLatch seen = new CountDownLatch(1);
+        final boolean[] streamed = new boolean[1];
+        // holds on to its first hit until the listener got it, or we give up
+        Repository slow = new DefaultRepository(new FileContentStore(getFolders()).createRoot()) {
+            @Override
+            public void searchModules(ModuleQuery query, ModuleSearchResult result) {
+                result.addResult("slow", null, null, set(), set("1.0"));
+                try {
+                    streamed[0] = seen.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        RepositoryManagerBuilder builder = new RepositoryManagerBuilder(getTempDir(), log);
+        if (withOtherRoot)
+            builder.appendRepository(new DefaultRepository(new FileContentStore(getRepositoryRoot()).createRoot()));
+        RepositoryManager manager = builder.appendRepository(slow).buildRepository();
+        ModuleSearchResult result = manager.searchModules(new ModuleQuery("", Type.JVM), new ModuleSearchResult.Listener() {
+            @Override
+            public void onResult(ModuleDetails details) {
+                if (details.getName().equals("slow"))
+                    seen.countDown();
+            }
+        });
+        Assert.assertTrue("The hit was only reported once the root was done", streamed[0]);
+        Assert.assertEquals(withOtherRoot ? 7 : 1, result.getCount());
+    }
+
+    @Test
+    public void testModuleIndex() throws Exception {
+        File repo = new File(getTempDir(), "repo");
+        File index = new File(getTempDir(), "index");
+        File car = new File(repo, "hello/1.0.0/hello-1.0.0.car");
+        Assert.assertTrue(car.getParentFile().mkdirs());
+        Files.copy(new File(getRepositoryRoot(), "hello/1.0.0/hello-1.0.0.car").toPath(), car.toPath());
+
+        ModuleDetails[] expected = new ModuleDetails[]{
+                new ModuleDetails("hello", "A test", "Apache Software License", set("The Ceylon Team"), set("1.0.0")),
+        };
+        FileContentStore store = new FileContentStore(repo);
+        store.setIndexDir(index);
+        RepositoryManager manager = new SimpleRepositoryManager(new DefaultRepository(store.createRoot()), log);
+        testSearchResults("test", Type.JVM, expected, manager);
+        Assert.assertEquals(1, store.getIndex().getArchivesRead());
+
+        // the next store gets it all from the saved index
+        store = new FileContentStore(repo);
+        store.setIndexDir(index);
+        manager = new SimpleRepositoryManager(new DefaultRepository(store.createRoot()), log);
+        testSearchResults("test", Type.JVM, expected, manager);
+        testComplete("he", expected, manager);
+        Assert.assertEquals(0, store.getIndex().getArchivesRead());
+
+        // and sees what we publish right away
+        ArtifactContext context = new ArtifactContext("hello2", "1.0.0", ArtifactContext.CAR);
+        manager.putArtifact(context, new ByteArrayInputStream(new byte[]{}));
+        ModuleQuery query = new ModuleQuery("hello", Type.JVM);
+        Assert.assertEquals(Arrays.asList("hello", "hello2"), new ArrayList<String>(manager.completeModules(query).getModuleNames()));
+        manager.removeArtifact(context);
+        Assert.assertEquals(Arrays.asList("hello"), new ArrayList<String>(manager.completeModules(query).getModuleNames()));
+    }
+
+    @Test
+    public void testModuleIndexPaging() throws Exception {
+        File repo = new File(getTempDir(), "repo");
+        File jar = new File(getRepositoryRoot(), "old-jar/1.2.CR1/old-jar-1.2.CR1.jar");
+        for (int i = 0; i < 300; i++) {
+            String name = String.format("mod%03d", i);
+            File file = new File(repo, name + "/1.0/" + name + "-1.0.jar");
+            Assert.assertTrue(file.getParentFile().mkdirs());
+            Files.copy(jar.toPath(), file.toPath());
+        }
+        FileContentStore store = new FileContentStore(repo);
+        store.setIndexDir(null);
+        ModuleIndex index = store.getIndex();
+
+        // a late page of a single trigram query is read right off its posting
+        ModuleQuery query = new ModuleQuery("mod", Type.JVM);
+        query.setStart(250l);
+        query.setCount(20l);
+        ModuleSearchResult result = new ModuleSearchResult();
+        index.searchModules(query, result);
+        Assert.assertEquals(Arrays.asList(new String[]{"mod250", "mod251"}), new ArrayList<String>(result.getModuleNames()).subList(0, 2));
+        Assert.assertEquals(20, result.getCount());
+        Assert.assertTrue(result.getHasMoreResults());
+        Assert.assertEquals(0, index.getModulesChecked());
+
+        // longer ones only check the modules having all their trigrams
+        query = new ModuleQuery("mod12", Type.JVM);
+        query.setStart(5l);
+        query.setCount(20l);
+        result = new ModuleSearchResult();
+        index.searchModules(query, result);
+        Assert.assertEquals(Arrays.asList("mod125", "mod126", "mod127", "mod128", "mod129"), new ArrayList<String>(result.getModuleNames()));
+        Assert.assertFalse(result.getHasMoreResults());
+        Assert.assertEquals(10, index.getModulesChecked());
+
+        // and nothing of another type
+        query = new ModuleQuery("mod", Type.JS);
+        result = new ModuleSearchResult();
+        index.searchModules(query, result);
+        Assert.assertEquals(0, result.getCount());
+    }
+
+    @Test
+    public void testModuleIndexMissingRoot() throws Exception {
+        File repo = new File(getTempDir(), "repo");
+        File index = new File(getTempDir(), "index");
+        FileContentStore store = new FileContentStore(repo);
+        store.setIndexDir(index);
+        store.getIndex().setCheckInterval(0);
+        SimpleRepositoryManager manager = new SimpleRepositoryManager(new DefaultRepository(store.createRoot()), log);
+        manager.setCompletionCacheTtl(0);
+        ModuleQuery query = new ModuleQuery("hello", Type.JVM);
+        Assert.assertEquals(0, manager.completeModules(query).getCount());
+        Assert.assertEquals(0, manager.completeModules(query).getCount());
+        // nothing is kept for a repository which does not exist
+        Assert.assertFalse(index.exists());
+
+        // until it does
+        File car = new File(repo, "hello/1.0.0/hello-1.0.0.car");
+        Assert.assertTrue(car.getParentFile().mkdirs());
+        Files.copy(new File(getRepositoryRoot(), "hello/1.0.0/hello-1.0.0.car").toPath(), car.toPath());
+        Assert.assertEquals(Arrays.asList("hello"), new ArrayList<String>(manager.completeModules(query).getModuleNames()));
+        Assert.assertEquals(1, index.list().length);
+    }
+
+    @Test
+    public void testModuleIndexPruning() throws Exception {
+        File repo = new File(getTempDir(), "repo");
+        File index = new File(getTempDir(), "index");
+        Assert.assertTrue(repo.mkdirs());
+        Assert.assertTrue(index.mkdirs());
+        // the index of a temporary repository, since deleted
+        File gone = new File(index, "gone.index");
+        writeIndex(gone, new File(getTempDir(), "gone"));
+        // and one not used for long
+        File old = new File(index, "old.index");
+        writeIndex(old, repo);
+        Assert.assertTrue(old.setLastModified(System.currentTimeMillis() - ModuleIndex.DEFAULT_MAX_AGE - 1000));
+        File used = new File(index, "used.index");
+        writeIndex(used, repo);
+
+        FileContentStore store = new FileContentStore(repo);
+        store.setIndexDir(index);
+        SimpleRepositoryManager manager = new SimpleRepositoryManager(new DefaultRepository(store.createRoot()), log);
+        manager.completeModules(new ModuleQuery("hello", Type.JVM));
+        Assert.assertFalse(gone.exists());
+        Assert.assertFalse(old.exists());
+        Assert.assertTrue(used.exists());
+    }
+
+    private static void writeIndex(File file, File root) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("format", "1");
+        properties.setProperty("root", root.getAbsolutePath());
+        OutputStream os = new FileOutputStream(file);
+        try {
+            properties.store(os, null);
+        } finally {
+            os.close();
+        }
+    }
+
+    @Test
+    public void testModuleDescriptorCache() throws Exception {
+        File repo = new File(getTempDir(), "repo");
+        File descriptors = new File(getTempDir(), "descriptors");
+        File car = new File(repo, "hello/1.0.0/hello-1.0.0.car");
+        Assert.assertTrue(car.getParentFile().mkdirs());
+        Files.copy(new File(getRepositoryRoot(), "hello/1.0.0/hello-1.0.0.car").toPath(), car.toPath());
+
+        ModuleDescriptorCache previous = ModuleDescriptorCache.getInstance();
+        ModuleDescriptorCache.setInstance(new ModuleDescriptorCache(descriptors));
+        try {
+            FileContentStore store = new FileContentStore(repo);
+            store.setIndexed(false);
+            RepositoryManager manager = new SimpleRepositoryManager(new DefaultRepository(store.createRoot()), log);
+            ModuleDetails[] expected = new ModuleDetails[]{
+                    new ModuleDetails("hello", "A test", "Apache Software License", set("The Ceylon Team"), set("1.0.0")),
+            };
+            testSearchResults("hello", Type.JVM, expected, manager);
+            // nothing gets written next to the archives
+            Assert.assertEquals(1, car.getParentFile().list().length);
+            Assert.assertEquals(1, countEntries(descriptors));
+            testSearchResults("hello", Type.JVM, expected, manager);
+
+            // a rebuilt archive replaces its entry
+            Assert.assertTrue(car.setLastModified(car.lastModified() - 10000));
+            testSearchResults("hello", Type.JVM, expected, manager);
+            Assert.assertEquals(1, countEntries(descriptors));
+        } finally {
+            ModuleDescriptorCache.setInstance(previous);
+        }
+    }
+
+    @Test
+    public void testModuleDescriptorReader() throws Exception {
+        ModuleDescriptorCache previous = ModuleDescriptorCache.getInstance();
+        // parse every time
+        ModuleDescriptorCache.setInstance(new ModuleDescriptorCache(null));
+        try {
+            File hello = copyToTemp("hello/1.0.0/hello-1.0.0.car");
+            Assert.assertArrayEquals(new int[]{3, 0}, BytecodeUtils.getBinaryVersions("hello", hello));
+            final List<Object> info = new ArrayList<Object>();
+            BytecodeUtils.readModuleInfo("hello", hello, new BytecodeUtils.ModuleInfoCallback() {
+                @Override
+                public void storeInfo(String doc, String license, String[] authors) {
+                    info.add(doc);
+                    info.add(license);
+                    info.add(Arrays.asList(authors));
+                }
+            });
+            Assert.assertEquals(Arrays.<Object>asList("A test", "Apache Software License", Arrays.asList("The Ceylon Team")), info);
+            Assert.assertEquals(0, BytecodeUtils.readModuleInformation("hello", hello).size());
+
+            List<ModuleInfo> imports = BytecodeUtils.readModuleInformation("moduletest", copyToTemp("moduletest/0.1/moduletest-0.1.car"));
+            Assert.assertEquals(1, imports.size());
+            Assert.assertEquals("hello", imports.get(0).getName());
+            Assert.assertEquals("1.0.0", imports.get(0).getVersion());
+            Assert.assertFalse(imports.get(0).isOptional());
+            Assert.assertFalse(imports.get(0).isExport());
+
+            // no module descriptor
+            File jar = copyToTemp("old-jar/1.2.CR1/old-jar-1.2.CR1.jar");
+            Assert.assertNull(BytecodeUtils.readModuleInformation("old-jar", jar));
+            Assert.assertNull(BytecodeUtils.getBinaryVersions("old-jar", jar));
+        } finally {
+            ModuleDescriptorCache.setInstance(previous);
+        }
+    }
+
+    private File copyToTemp(String path) throws Exception {
+        // a new path, so nothing we read before is remembered
+        File copy = new File(getTempDir(), path);
+        Assert.assertTrue(copy.getParentFile().mkdirs());
+        Files.copy(new File(getRepositoryRoot(), path).toPath(), copy.toPath());
+        return copy;
+    }
+
+    private static int countEntries(File dir) {
+        int count = 0;
+        for (File f : dir.listFiles()) {
+            count += f.isDirectory() ? countEntries(f) : (f.getName().endsWith(".properties") ? 1 : 0);
+        }
+        return count;
+    }
+
+    @Test
+    public void testLazyVersionDetails() throws Exception {
+        FileContentStore store = new FileContentStore(getRepositoryRoot());
+        store.setIndexDir(null);
+        RepositoryManager manager = new SimpleRepositoryManager(new DefaultRepository(store.createRoot()), log);
+
+        ModuleVersionResult result = manager.completeVersions(new ModuleVersionQuery("hello", null, Type.JVM));
+        Assert.assertEquals(Arrays.asList("1.0.0"), new ArrayList<String>(result.getVersions().keySet()));
+        // listing versions does not open the archives
+        Assert.assertEquals(0, store.getIndex().getArchivesRead());
+        Assert.assertEquals("A test", result.getVersions().get("1.0.0").getDoc());
+        Assert.assertEquals(1, store.getIndex().getArchivesRead());
+    }
+
     @Test
     public void testSearchModulesFilteredByName() throws Exception {
         ModuleDetails[] expected = new ModuleDetails[]{
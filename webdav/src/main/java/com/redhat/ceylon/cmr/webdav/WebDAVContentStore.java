@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.http.ProtocolException;
 import org.apache.http.client.ClientProtocolException;
@@ -34,12 +35,14 @@ import com.googlecode.sardine.SardineFactory;
 import com.googlecode.sardine.impl.SardineException;
 import com.redhat.ceylon.cmr.api.Logger;
 import com.redhat.ceylon.cmr.impl.CMRException;
+import com.redhat.ceylon.cmr.impl.HttpContentHandle;
 import com.redhat.ceylon.cmr.impl.NodeUtils;
 import com.redhat.ceylon.cmr.impl.URLContentStore;
 import com.redhat.ceylon.cmr.spi.ContentHandle;
 import com.redhat.ceylon.cmr.spi.ContentOptions;
 import com.redhat.ceylon.cmr.spi.Node;
 import com.redhat.ceylon.cmr.spi.OpenNode;
+import com.redhat.ceylon.cmr.util.HttpConnector;
 
 /**
  * WebDAV content store.
@@ -69,6 +72,7 @@ public class WebDAVContentStore extends URLContentStore {
 
     public OpenNode create(Node parent, String child) {
         try {
+            checkOnline("create " + child);
             if(!isHerd())
                 mkdirs(getSardine(), parent);
             return createNode(child);
@@ -78,12 +82,8 @@ public class WebDAVContentStore extends URLContentStore {
     }
 
     public ContentHandle peekContent(Node node) {
-        try {
-            final String url = getUrlAsString(node);
-            return (getSardine().exists(url) ? new WebDAVContentHandle(url) : null);
-        } catch (IOException e) {
-            return null;
-        }
+        final String url = getUrlAsString(node);
+        return (exists(url) ? new WebDAVContentHandle(url) : null);
     }
 
     public ContentHandle getContent(Node node) throws IOException {
@@ -94,6 +94,7 @@ public class WebDAVContentStore extends URLContentStore {
         final Sardine s = getSardine();
 
         try {
+            checkOnline("PUT " + getUrlAsString(node));
             /*
              * Most disgusting trick ever. Stef failed to set up Sardine to do preemptive auth on all hosts
              * and ports (may only work on port 80, reading the code), so when not using Herd we generate a ton
@@ -160,6 +161,8 @@ public class WebDAVContentStore extends URLContentStore {
 
     public Iterable<? extends OpenNode> find(Node parent) {
         final String url = getUrlAsString(parent);
+        if (isBlocked("list " + url))
+            return Collections.emptyList();
         try {
             final List<OpenNode> nodes = new ArrayList<OpenNode>();
             final List<DavResource> resources = getSardine().list(url);
@@ -181,19 +184,24 @@ public class WebDAVContentStore extends URLContentStore {
 
     @Override
     protected boolean urlExists(String path) {
-        try {
-            return getSardine().exists(getUrlAsString(path));
-        } catch (IOException e) {
-            log.debug("Failed to check url: " + path);
-            return false;
-        }
+        return exists(getUrlAsString(path));
     }
 
     protected boolean urlExists(URL url) {
+        return exists(url.toExternalForm());
+    }
+
+    private boolean exists(String url) {
+        if (isBlocked("exists " + url) || isAvailable() == false)
+            return false;
+        final long start = System.nanoTime();
         try {
-            return getSardine().exists(url.toExternalForm());
+            final boolean exists = getSardine().exists(url);
+            succeeded(start);
+            return exists;
         } catch (IOException e) {
             log.debug("Failed to check url: " + url);
+            failed(e.toString());
             return false;
         }
     }
@@ -203,7 +211,7 @@ public class WebDAVContentStore extends URLContentStore {
         return "WebDAV content store: " + root;
     }
 
-    private class WebDAVContentHandle implements ContentHandle {
+    private class WebDAVContentHandle implements HttpContentHandle {
 
         private final String url;
 
@@ -212,6 +220,8 @@ public class WebDAVContentStore extends URLContentStore {
         }
 
         public boolean hasBinaries() {
+            if (isBlocked("list " + url))
+                return false;
             try {
                 final List<DavResource> list = getSardine().list(url);
                 return list.size() == 1 && list.get(0).isDirectory() == false;
@@ -222,14 +232,33 @@ public class WebDAVContentStore extends URLContentStore {
         }
 
         public InputStream getBinariesAsStream() throws IOException {
+            checkOnline("GET " + url);
             return getSardine().get(url);
         }
 
+        public HttpConnector.Response fetch(Map<String, String> headers) throws IOException {
+            return WebDAVContentStore.this.fetch(new URL(url), headers);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(url);
+        }
+
+        public int getSegments(long length) {
+            return WebDAVContentStore.this.getSegments(length);
+        }
+
+        public boolean isPrefetched() {
+            return false;
+        }
+
         public File getContentAsFile() throws IOException {
             return null;
         }
 
         public long getLastModified() throws IOException {
+            checkOnline("list " + url);
             if(isHerd())
                 return lastModified(new URL(url));
             final List<DavResource> list = getSardine().list(url);